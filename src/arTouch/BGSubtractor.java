@@ -2,25 +2,31 @@ package arTouch;
 
 import java.awt.image.Raster;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import arTouch.Clusterer.Cluster;
-import arTouch.Clusterer.RasterPixelAccess;
-import arTouch.Clusterer.pixelAccess;
+import arTouch.metrics.LatencyHistogram;
+import arTouch.metrics.Metrics;
 
 /**
  * This class will subtract away the background, leaving only the 
- * foreground image to be processed.
+ * foreground image to be processed. Each camera has its own 
+ * BackgroundModel; getForegrounds evaluates both at once, the second 
+ * camera on a worker thread.
  * @author el
  *
  */
 public class BGSubtractor {
-	int[][] bg0R, bg0G, bg0B, bg1R, bg1G, bg1B;
-	int width, height;
-	RasterPixelAccess raster0PixelAccess = new Clusterer.RasterPixelAccess();
-	RasterPixelAccess raster1PixelAccess = new Clusterer.RasterPixelAccess();
-	BG0PixelAccess bg0PixelAccess = new BG0PixelAccess();
-	BG1PixelAccess bg1PixelAccess = new BG1PixelAccess();
-	boolean bg0Saved = false, bg1Saved = false;
+	BackgroundModel model0, model1;
+	boolean parallel = true;
+	private ExecutorService executor;
+	private LatencyHistogram foregroundLatency0, foregroundLatency1;
 	
 	/**
 	 * The number of contiguous pixels required to form an acceptable cluster
@@ -31,84 +37,157 @@ public class BGSubtractor {
 	 * The total RGB difference necessary to classify a pixel as "hot"
 	 */
 	public static final int MIN_DIFF_THRESHOLD = 30;
-	
-	private void saveBG0 (Raster raster0) {
-		bg0R = new int[width][height];
-		bg0G = new int[width][height];
-		bg0B = new int[width][height];
-
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				int[] rgb0 = raster0.getPixel(x, y, new int[4]);
-				
-				bg0R[x][y] = rgb0[0];
-				bg0G[x][y] = rgb0[1];
-				bg0B[x][y] = rgb0[2];
-			}
-		}
+
+	/**
+	 * The foreground clusters of both cameras for one image pair
+	 */
+	public static class ForegroundPair {
+		public ArrayList<Cluster> clusters0, clusters1;
 	}
-	
-	private void saveBG1 (Raster raster1) {
-		bg1R = new int[width][height];
-		bg1G = new int[width][height];
-		bg1B = new int[width][height];
-
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				int[] rgb1 = raster1.getPixel(x, y, new int[4]);
-				
-				bg1R[x][y] = rgb1[0];
-				bg1G[x][y] = rgb1[1];
-				bg1B[x][y] = rgb1[2];
-			}
-		}
+
+	public BGSubtractor () {
+		model0 = new BackgroundModel(MIN_DIFF_THRESHOLD, MIN_CLUSTER_THRESHOLD);
+		model1 = new BackgroundModel(MIN_DIFF_THRESHOLD, MIN_CLUSTER_THRESHOLD);
 	}
-	
-	public class BG0PixelAccess implements pixelAccess {
-		public int[] getPixel(int x, int y) {
-			int[] rgb = new int[4];
-			rgb[0] = bg0R[x][y];
-			rgb[1] = bg0G[x][y];
-			rgb[2] = bg0B[x][y];
-			rgb[3] = 255;
-			return rgb;
-		}
+
+	/**
+	 * Chooses whether getForegrounds evaluates the two cameras 
+	 * concurrently or one after the other.
+	 */
+	public void setParallel (boolean parallel) {
+		this.parallel = parallel;
 	}
 	
-	public class BG1PixelAccess implements pixelAccess {
-		public int[] getPixel(int x, int y) {
-			int[] rgb = new int[4];
-			rgb[0] = bg1R[x][y];
-			rgb[1] = bg1G[x][y];
-			rgb[2] = bg1B[x][y];
-			rgb[3] = 255;
-			return rgb;
-		}
+	/**
+	 * Sets how quickly both background models adapt to the scene outside
+	 * and inside the foreground; 0 for both keeps the first frame as the 
+	 * background.
+	 */
+	public void setLearningRate (double rate, double foregroundRate) {
+		model0.setLearningRate(rate, foregroundRate);
+		model1.setLearningRate(rate, foregroundRate);
+	}
+
+	/**
+	 * Splits clustering of each camera into strips labeled on the given
+	 * pool. A null pool returns to sequential clustering.
+	 */
+	public void setParallelClustering (ForkJoinPool pool, int strips) {
+		model0.labeler.setParallel(pool, strips);
+		model1.labeler.setParallel(pool, strips);
 	}
 	
+	/**
+	 * Sets the pyramid level both cameras are searched at (see
+	 * BackgroundModel.setLevel); 0 for full resolution.
+	 */
+	public void setLevel (int level) {
+		model0.setLevel(level);
+		model1.setLevel(level);
+	}
+
+	/**
+	 * Turns tracking of each camera's clusters on or off. While tracking,
+	 * most frames are only searched around the tracked objects (see
+	 * ClusterTracker).
+	 */
+	public void setTracking (boolean tracking) {
+		model0.setTracker(tracking ? new ClusterTracker() : null);
+		model1.setTracker(tracking ? new ClusterTracker() : null);
+	}
+
+	/**
+	 * Records each camera's foreground and clustering times in the
+	 * stages foreground0, foreground1, clustering0 and clustering1 of the
+	 * given metrics; null to stop recording.
+	 */
+	public void setMetrics (Metrics metrics) {
+		foregroundLatency0 = metrics == null ? null : metrics.getStage("foreground0");
+		foregroundLatency1 = metrics == null ? null : metrics.getStage("foreground1");
+		model0.setClusteringLatency(
+				metrics == null ? null : metrics.getStage("clustering0"));
+		model1.setClusteringLatency(
+				metrics == null ? null : metrics.getStage("clustering1"));
+	}
+
+	/**
+	 * Returns the number of pixels searched in the last frame pair
+	 */
+	public int getPixelsScanned () {
+		return model0.getPixelsScanned() + model1.getPixelsScanned();
+	}
+
 	public ArrayList<Cluster> getForeground0 (Raster raster0) {
-		if (!bg0Saved) {
-			width = raster0.getWidth();
-			height = raster0.getHeight();
-			saveBG0(raster0);
-			bg0Saved = true;
-		}
-		
-		raster0PixelAccess.raster = raster0;
-		return Clusterer.findClusters(raster0PixelAccess, bg0PixelAccess, width, 
-				height, MIN_DIFF_THRESHOLD, MIN_CLUSTER_THRESHOLD);
+		long start = System.nanoTime();
+		ArrayList<Cluster> clusters = model0.getForeground(raster0);
+		if (foregroundLatency0 != null)
+			foregroundLatency0.recordSince(start);
+		return clusters;
 	}
 	
 	public ArrayList<Cluster> getForeground1 (Raster raster1) {
-		if (!bg1Saved) {
-			width = raster1.getWidth();
-			height = raster1.getHeight();
-			saveBG1(raster1);
-			bg1Saved = true;
+		long start = System.nanoTime();
+		ArrayList<Cluster> clusters = model1.getForeground(raster1);
+		if (foregroundLatency1 != null)
+			foregroundLatency1.recordSince(start);
+		return clusters;
+	}
+
+	/**
+	 * Finds the foreground of both cameras. In parallel mode the second 
+	 * camera is handed to a worker thread while the calling thread does
+	 * the first, and the two results are joined before returning.
+	 */
+	public ForegroundPair getForegrounds (Raster raster0, final Raster raster1) {
+		ForegroundPair out = new ForegroundPair();
+
+		if (!parallel) {
+			out.clusters0 = getForeground0(raster0);
+			out.clusters1 = getForeground1(raster1);
+			return out;
+		}
+
+		Future<ArrayList<Cluster>> future1 = getExecutor().submit(
+				new Callable<ArrayList<Cluster>>() {
+					public ArrayList<Cluster> call () {
+						return getForeground1(raster1);
+					}
+				});
+
+		out.clusters0 = getForeground0(raster0);
+
+		try {
+			out.clusters1 = future1.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future1.cancel(true);
+			out.clusters1 = new ArrayList<Cluster>();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		return out;
+	}
+
+	private synchronized ExecutorService getExecutor () {
+		if (executor == null) {
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread (Runnable r) {
+					Thread t = new Thread(r, "Foreground Thread");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Stops the worker thread used for parallel evaluation
+	 */
+	public synchronized void shutdown () {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
 		}
-		
-		raster1PixelAccess.raster = raster1;
-		return Clusterer.findClusters(raster1PixelAccess, bg1PixelAccess, width, 
-				height, MIN_DIFF_THRESHOLD, MIN_CLUSTER_THRESHOLD);
 	}
 }
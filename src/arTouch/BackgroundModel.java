@@ -0,0 +1,288 @@
+package arTouch;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.util.ArrayList;
+
+import arTouch.Clusterer.Cluster;
+import arTouch.Clusterer.RasterRowAccess;
+import arTouch.Clusterer.RegionRowAccess;
+import arTouch.Clusterer.RowAccess;
+import arTouch.ImagePyramid.LevelRowAccess;
+import arTouch.metrics.LatencyHistogram;
+
+/**
+ * The background as seen by a single camera. A model owns all of its
+ * state, so the models of different cameras can be evaluated on 
+ * different threads at the same time. A single model is not thread safe.
+ * 
+ * The background is a per-pixel running average that follows slow 
+ * lighting changes: after each frame every pixel outside the returned
+ * foreground clusters moves towards its new value by the learning rate.
+ * Pixels inside the clusters move by the much smaller foreground rate, so
+ * that a region which stays hot for a long time (say after a sudden 
+ * lighting change) is eventually absorbed instead of staying hot forever.
+ * A learning rate of 0 keeps the first frame as a fixed background.
+ * 
+ * With a ClusterTracker set, frames between the tracker's full scans are
+ * only searched, and their background only updated, in the regions of 
+ * interest around the tracked clusters.
+ * 
+ * A model can also work on a reduced level of each frame's ImagePyramid.
+ * The background, the tracker and the minimum cluster size are then all
+ * at that level, and the clusters are scaled back up to full resolution
+ * when returned.
+ */
+public class BackgroundModel {
+	/**
+	 * Fractional bits of the fixed point background values
+	 */
+	private static final int FRACTION_BITS = 8;
+	private static final int ONE = 1 << FRACTION_BITS;
+
+	public static final double DEFAULT_LEARNING_RATE = 0.05;
+	public static final double DEFAULT_FOREGROUND_LEARNING_RATE = 0.005;
+
+	/**
+	 * Fixed point channel averages, held unsigned (255 << FRACTION_BITS
+	 * still fits in 16 bits)
+	 */
+	PixelPlane bgR, bgG, bgB;
+	int width, height;
+	int minDiffThreshold, minClusterSize;
+	int learningRate, foregroundLearningRate;
+	boolean bgSaved = false;
+	RasterRowAccess rasterRowAccess = new Clusterer.RasterRowAccess();
+	BGRowAccess bgRowAccess = new BGRowAccess();
+	ComponentLabeler labeler = new ComponentLabeler();
+	RegionRowAccess regionRowAccess0 = new RegionRowAccess();
+	RegionRowAccess regionRowAccess1 = new RegionRowAccess();
+	ImagePyramid pyramid = new ImagePyramid();
+	LevelRowAccess levelRowAccess = new LevelRowAccess();
+	ClusterTracker tracker;
+	int level = 0;
+	LatencyHistogram clusteringLatency;
+
+	/**
+	 * The current frame at the working level
+	 */
+	private RowAccess frame;
+	private int[] row = new int[0];
+	private int pixelsScanned;
+
+	public BackgroundModel (int minDiffThreshold, int minClusterSize) {
+		this.minDiffThreshold = minDiffThreshold;
+		this.minClusterSize = minClusterSize;
+		setLearningRate(DEFAULT_LEARNING_RATE, DEFAULT_FOREGROUND_LEARNING_RATE);
+	}
+
+	/**
+	 * Sets how far (0 to 1) a background pixel moves towards a new 
+	 * observation each frame, for pixels outside and inside the 
+	 * foreground clusters respectively. Rates are kept to 1/256 steps; a
+	 * positive rate is never rounded down to 0.
+	 */
+	public void setLearningRate (double rate, double foregroundRate) {
+		learningRate = toFixed(rate);
+		foregroundLearningRate = toFixed(foregroundRate);
+	}
+
+	private static int toFixed (double rate) {
+		if (rate < 0 || rate > 1)
+			throw new IllegalArgumentException("Learning rate must be in [0,1]");
+		return rate == 0 ? 0 : Math.max(1, (int) Math.round(rate * ONE));
+	}
+
+	/**
+	 * Sets the pyramid level frames are searched at, 0 for full
+	 * resolution. Each level up halves the image in both directions and
+	 * divides the minimum cluster size by 4. Changing the level starts a
+	 * new background from the next frame.
+	 */
+	public void setLevel (int level) {
+		if (level < 0 || level > ImagePyramid.MAX_LEVEL)
+			throw new IllegalArgumentException("Level must be in [0," + 
+					ImagePyramid.MAX_LEVEL + "]");
+		this.level = level;
+		bgSaved = false;
+	}
+
+	public int getLevel () {
+		return level;
+	}
+
+	/**
+	 * The minimum cluster size at the working level
+	 */
+	private int getLevelClusterSize () {
+		return Math.max(1, minClusterSize >> 2 * level);
+	}
+
+	/**
+	 * Restricts frames to the regions of interest of the given tracker,
+	 * which is updated with the clusters of every frame. Null searches
+	 * every frame in full.
+	 */
+	public void setTracker (ClusterTracker tracker) {
+		this.tracker = tracker;
+	}
+
+	public ClusterTracker getTracker () {
+		return tracker;
+	}
+
+	/**
+	 * Sets where the time spent labeling each frame's clusters is
+	 * recorded, or null to record nothing
+	 */
+	public void setClusteringLatency (LatencyHistogram clusteringLatency) {
+		this.clusteringLatency = clusteringLatency;
+	}
+
+	/**
+	 * Returns the number of pixels searched in the last frame, at the
+	 * working level
+	 */
+	public int getPixelsScanned () {
+		return pixelsScanned;
+	}
+
+	public double getLearningRate () {
+		return learningRate / (double) ONE;
+	}
+
+	public double getForegroundLearningRate () {
+		return foregroundLearningRate / (double) ONE;
+	}
+
+	private void saveBG () {
+		bgR = new PixelPlane(width, height);
+		bgG = new PixelPlane(width, height);
+		bgB = new PixelPlane(width, height);
+
+		for (int y = 0; y < height; y++) {
+			frame.getRow(0, y, width, row);
+			for (int x = 0, i = y * width; x < width; x++, i++) {
+				bgR.set(i, PackedPixels.red(row[x]) << FRACTION_BITS);
+				bgG.set(i, PackedPixels.green(row[x]) << FRACTION_BITS);
+				bgB.set(i, PackedPixels.blue(row[x]) << FRACTION_BITS);
+			}
+		}
+	}
+
+	/**
+	 * Blends a rectangle of the current frame into the background, slowly
+	 * for the pixels of the clusters the labeler last found in it and at
+	 * the full rate elsewhere.
+	 */
+	private void updateBG (int left, int top, int w, int h) {
+		for (int y = top; y < top + h; y++) {
+			frame.getRow(left, y, w, row);
+			for (int x = 0, i = y * width + left; x < w; x++, i++) {
+				int rate = labeler.isClustered((y - top) * w + x) ? 
+						foregroundLearningRate : learningRate;
+				if (rate == 0)
+					continue;
+
+				int rgb = row[x];
+				bgR.set(i, blend(bgR.getUnsigned(i), PackedPixels.red(rgb), rate));
+				bgG.set(i, blend(bgG.getUnsigned(i), PackedPixels.green(rgb), rate));
+				bgB.set(i, blend(bgB.getUnsigned(i), PackedPixels.blue(rgb), rate));
+			}
+		}
+	}
+
+	/**
+	 * Moves the fixed point average bg towards the observed channel value
+	 */
+	private static int blend (int bg, int value, int rate) {
+		return bg + (((value << FRACTION_BITS) - bg) * rate >> FRACTION_BITS);
+	}
+
+	public class BGRowAccess implements RowAccess {
+		public void getRow(int x, int y, int length, int[] argb) {
+			int half = ONE / 2;
+			for (int i = 0, p = y * width + x; i < length; i++, p++)
+				argb[i] = PackedPixels.pack(
+						(bgR.getUnsigned(p) + half) >> FRACTION_BITS, 
+						(bgG.getUnsigned(p) + half) >> FRACTION_BITS,
+						(bgB.getUnsigned(p) + half) >> FRACTION_BITS);
+		}
+	}
+
+	/**
+	 * Returns the clusters of pixels differing from the background, at
+	 * full resolution. The first raster seen is taken as the initial 
+	 * background.
+	 */
+	public ArrayList<Cluster> getForeground (Raster raster) {
+		rasterRowAccess.raster = raster;
+		pyramid.build(rasterRowAccess, raster.getWidth(), raster.getHeight(), 
+				level);
+		frame = rasterRowAccess;
+		if (level > 0) {
+			levelRowAccess.pyramid = pyramid;
+			levelRowAccess.level = level;
+			frame = levelRowAccess;
+		}
+
+		if (!bgSaved) {
+			width = pyramid.getWidth(level);
+			height = pyramid.getHeight(level);
+			row = new int[width];
+			saveBG();
+			bgSaved = true;
+		}
+
+		int clusterSize = getLevelClusterSize();
+		boolean learning = learningRate > 0 || foregroundLearningRate > 0;
+		ArrayList<Rectangle> regions = tracker == null ? null :
+			tracker.getRegions(width, height);
+		ArrayList<Cluster> clusters;
+		long clusteringNanos;
+
+		if (regions == null) {
+			long start = System.nanoTime();
+			clusters = labeler.findClusters(frame, bgRowAccess, 
+					width, height, minDiffThreshold, clusterSize);
+			clusteringNanos = System.nanoTime() - start;
+			pixelsScanned = width * height;
+			if (learning)
+				updateBG(0, 0, width, height);
+		} else {
+			clusters = new ArrayList<Cluster>();
+			clusteringNanos = 0;
+			pixelsScanned = 0;
+			regionRowAccess0.source = frame;
+			regionRowAccess1.source = bgRowAccess;
+
+			// The labels of each region must be used before the next
+			// region overwrites them
+			for (Rectangle r : regions) {
+				regionRowAccess0.left = regionRowAccess1.left = r.x;
+				regionRowAccess0.top = regionRowAccess1.top = r.y;
+				long start = System.nanoTime();
+				for (Cluster c : labeler.findClusters(regionRowAccess0, 
+						regionRowAccess1, r.width, r.height, minDiffThreshold, 
+						clusterSize))
+					clusters.add(c.translate(r.x, r.y));
+				clusteringNanos += System.nanoTime() - start;
+				pixelsScanned += r.width * r.height;
+				if (learning)
+					updateBG(r.x, r.y, r.width, r.height);
+			}
+		}
+
+		if (clusteringLatency != null)
+			clusteringLatency.record(clusteringNanos);
+		if (tracker != null)
+			tracker.update(clusters);
+		if (level == 0)
+			return clusters;
+
+		ArrayList<Cluster> scaled = new ArrayList<Cluster>(clusters.size());
+		for (Cluster c : clusters)
+			scaled.add(c.upscale(level));
+		return scaled;
+	}
+}
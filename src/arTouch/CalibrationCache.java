@@ -0,0 +1,145 @@
+package arTouch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Keeps calibrations on disk so a fixed camera rig does not need to be
+ * calibrated from scratch on every start. Each rig and resolution gets
+ * its own file in the cache directory, holding a small header followed
+ * by the three per-pixel offset maps as row-major shorts. Files are
+ * memory mapped when loaded.
+ */
+public class CalibrationCache {
+	private static final int MAGIC = 0x41525443; // "ARTC"
+	private static final int FORMAT_VERSION = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private File directory;
+
+	public CalibrationCache (File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Returns the file holding the calibration for the given rig at the
+	 * given resolution.
+	 */
+	public File getFile (String rigKey, int width, int height) {
+		return new File(directory, rigKey.replaceAll("[^A-Za-z0-9._-]", "_") +
+				"-" + width + "x" + height + ".cal");
+	}
+
+	/**
+	 * Loads the cached calibration for the given rig and resolution, or
+	 * returns null if there is none or it was written for something else.
+	 */
+	public CalibrationSnapshot load (String rigKey, int width, int height)
+	throws IOException {
+		File file = getFile(rigKey, width, height);
+		if (!file.isFile())
+			return null;
+
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+					0, channel.size());
+
+			if (buffer.remaining() < 12 || buffer.getInt() != MAGIC ||
+					buffer.getInt() != FORMAT_VERSION)
+				return null;
+
+			int keyLength = buffer.getInt();
+			if (keyLength < 0 || keyLength > buffer.remaining())
+				return null;
+			byte[] key = new byte[keyLength];
+			buffer.get(key);
+			if (!rigKey.equals(new String(key, UTF8)) || buffer.remaining() < 28)
+				return null;
+
+			if (buffer.getInt() != width || buffer.getInt() != height)
+				return null;
+			int offsetX = buffer.getInt(), offsetY = buffer.getInt();
+			int globalR = buffer.getInt(), globalG = buffer.getInt(),
+				globalB = buffer.getInt();
+
+			if (buffer.remaining() != 3 * 2 * width * height)
+				return null;
+			ShortBuffer planes = buffer.asShortBuffer();
+			PixelPlane r = readPlane(planes, width, height);
+			PixelPlane g = readPlane(planes, width, height);
+			PixelPlane b = readPlane(planes, width, height);
+
+			return new CalibrationSnapshot(1, offsetX, offsetY, globalR, globalG,
+					globalB, r, g, b);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static PixelPlane readPlane (ShortBuffer planes, int width,
+			int height) {
+		PixelPlane plane = new PixelPlane(width, height);
+		for (int i = 0; i < width * height; i++)
+			plane.set(i, planes.get());
+		return plane;
+	}
+
+	/**
+	 * Writes a calibration for the given rig and resolution. The file is
+	 * written alongside and renamed into place, so a reader never sees
+	 * half a calibration.
+	 */
+	public void save (String rigKey, int width, int height,
+			CalibrationSnapshot calibration) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create " + directory);
+
+		byte[] key = rigKey.getBytes(UTF8);
+		ByteBuffer buffer = ByteBuffer.allocate(4 * 3 + key.length + 4 * 7 +
+				3 * 2 * width * height);
+		buffer.putInt(MAGIC).putInt(FORMAT_VERSION);
+		buffer.putInt(key.length).put(key);
+		buffer.putInt(width).putInt(height);
+		buffer.putInt(calibration.offsetX).putInt(calibration.offsetY);
+		buffer.putInt(calibration.globalOffsetR).putInt(calibration.globalOffsetG)
+			.putInt(calibration.globalOffsetB);
+
+		ShortBuffer planes = buffer.asShortBuffer();
+		writePlane(planes, calibration.individualOffsetR, width, height);
+		writePlane(planes, calibration.individualOffsetG, width, height);
+		writePlane(planes, calibration.individualOffsetB, width, height);
+		buffer.rewind();
+
+		File file = getFile(rigKey, width, height);
+		File temp = new File(directory, file.getName() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+		try {
+			out.setLength(0);
+			FileChannel channel = out.getChannel();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		} finally {
+			out.close();
+		}
+
+		if (!temp.renameTo(file)) {
+			file.delete();
+			if (!temp.renameTo(file))
+				throw new IOException("Cannot replace " + file);
+		}
+	}
+
+	private static void writePlane (ShortBuffer planes, PixelPlane plane,
+			int width, int height) {
+		for (int i = 0; i < width * height; i++)
+			planes.put((short) plane.get(i));
+	}
+}
@@ -0,0 +1,62 @@
+package arTouch;
+
+/**
+ * An immutable set of calibration values. The calibrator publishes a new 
+ * snapshot whenever calibration changes, so a frame processed with one 
+ * snapshot never sees values from two different calibrations.
+ * 
+ * The per-pixel offset planes are shared between snapshots and must never
+ * be written once published.
+ */
+public class CalibrationSnapshot {
+	public final int offsetX, offsetY;
+	public final int globalOffsetR, globalOffsetG, globalOffsetB;
+	final PixelPlane individualOffsetR, individualOffsetG, individualOffsetB;
+
+	/**
+	 * How far each color channel has drifted since the individual offsets
+	 * were measured. Added to them when camera2 is remapped.
+	 */
+	public final int driftR, driftG, driftB;
+
+	/**
+	 * Counts the snapshots published by a calibrator, starting at 1
+	 */
+	public final int version;
+
+	CalibrationSnapshot (int version, int offsetX, int offsetY, 
+			int globalOffsetR, int globalOffsetG, int globalOffsetB,
+			PixelPlane individualOffsetR, PixelPlane individualOffsetG,
+			PixelPlane individualOffsetB) {
+		this(version, offsetX, offsetY, globalOffsetR, globalOffsetG, 
+				globalOffsetB, individualOffsetR, individualOffsetG, 
+				individualOffsetB, 0, 0, 0);
+	}
+
+	CalibrationSnapshot (int version, int offsetX, int offsetY, 
+			int globalOffsetR, int globalOffsetG, int globalOffsetB,
+			PixelPlane individualOffsetR, PixelPlane individualOffsetG,
+			PixelPlane individualOffsetB, int driftR, int driftG, int driftB) {
+		this.version = version;
+		this.offsetX = offsetX;
+		this.offsetY = offsetY;
+		this.globalOffsetR = globalOffsetR;
+		this.globalOffsetG = globalOffsetG;
+		this.globalOffsetB = globalOffsetB;
+		this.individualOffsetR = individualOffsetR;
+		this.individualOffsetG = individualOffsetG;
+		this.individualOffsetB = individualOffsetB;
+		this.driftR = driftR;
+		this.driftG = driftG;
+		this.driftB = driftB;
+	}
+
+	/**
+	 * Returns a copy of this snapshot with a new color drift
+	 */
+	CalibrationSnapshot withDrift (int r, int g, int b) {
+		return new CalibrationSnapshot(version + 1, offsetX, offsetY, 
+				globalOffsetR, globalOffsetG, globalOffsetB, individualOffsetR,
+				individualOffsetG, individualOffsetB, r, g, b);
+	}
+}
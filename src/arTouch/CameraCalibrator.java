@@ -1,22 +1,181 @@
 package arTouch;
 
-import java.awt.image.BufferedImage;
 import java.awt.image.Raster;
-import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import arTouch.previews.HeadlessPreview;
 
 /**
  * Calibrates two cameras. This consists of two things: 
  * 
  * 1. Shift the image of the second camera to match that of the first camera.
  * 2. Distort the colors of the second camera to match those of the first.
+ * 
+ * Initial calibration runs on the first frame pair, or is loaded from a
+ * CalibrationCache when one is set and still fits. After that, color
+ * drift is tracked by a background worker. On a fixed schedule the 
+ * processing thread samples the overlap of a frame pair, and the worker
+ * measures how far each sample's channel differences between the 
+ * cameras have moved since the individual offsets were measured. The
+ * drift of a channel is the median of those changes, so that foreground
+ * in view, whose samples change every which way, does not move it. When
+ * too many samples stray from the drift to be background, nothing is
+ * published. Otherwise a new CalibrationSnapshot carrying the drift is
+ * published once it has moved by more than the drift threshold;
+ * remapping adds it to the individual offsets. Each frame is processed
+ * against the snapshot current when checkCameraCalibration was called.
  */
 public class CameraCalibrator {
+	/**
+	 * How the image offset between the cameras is searched for
+	 */
+	public enum AlignmentMode {
+		/**
+		 * Random single pixel steps, keeping those that lower the error
+		 */
+		RANDOM_WALK,
+		/**
+		 * FFT phase correlation, refined by checking the nearby offsets
+		 */
+		PHASE_CORRELATION
+	}
+
+	/**
+	 * How far from the phase correlation peak offsets are checked, which
+	 * covers the downsampling and weak peaks on smooth scenes
+	 */
+	private static final int REFINE_RADIUS = 2;
+
+	public static final long DEFAULT_RECALIBRATION_INTERVAL = 1000;
+	public static final int DEFAULT_DRIFT_THRESHOLD = 2;
+	public static final int DEFAULT_SAMPLE_STEP = 4;
+	public static final double DEFAULT_CACHE_TOLERANCE = 20;
+	public static final double DEFAULT_MAX_FOREGROUND = 0.25;
+
+	/**
+	 * How far a sample's change, summed over the channels, may stray from
+	 * the drift before the sample is taken for foreground
+	 */
+	private static final int FOREGROUND_DIFF = BGSubtractor.MIN_DIFF_THRESHOLD;
+
+	/**
+	 * Row and column spacing of the pixels checked when validating a 
+	 * cached calibration
+	 */
+	private static final int CACHE_CHECK_STEP = 8;
+
 	private boolean initialCalibrationDone = false;
+	private AlignmentMode alignmentMode = AlignmentMode.PHASE_CORRELATION;
+	private PhaseCorrelator phaseCorrelator = new PhaseCorrelator();
 	int offsetX = -10, offsetY = 15;
 	int height, width;
 	int globalOffsetR = 0, globalOffsetG = 0, globalOffsetB = 0;
-	int[][] individualOffsetR, individualOffsetG, individualOffsetB;
+	PixelPlane individualOffsetR, individualOffsetG, individualOffsetB;
 	Raster raster0, raster1;
+	private int[] packed0, calibrated1;
+	private volatile boolean remapStale = true;
+
+	private final AtomicReference<CalibrationSnapshot> published = 
+		new AtomicReference<CalibrationSnapshot>();
+	private CalibrationSnapshot frameCalibration;
+	/**
+	 * The samples of the frame pair the individual offsets were measured
+	 * on, which drift is measured from
+	 */
+	private int[][] baseSamples;
+	private final AtomicBoolean recalibrating = new AtomicBoolean(false);
+	private ExecutorService recalibrator;
+	private long lastRecalibration;
+	private long recalibrationInterval = DEFAULT_RECALIBRATION_INTERVAL;
+	private int driftThreshold = DEFAULT_DRIFT_THRESHOLD;
+	private int sampleStep = DEFAULT_SAMPLE_STEP;
+	private double maxForeground = DEFAULT_MAX_FOREGROUND;
+	private CalibrationCache cache;
+	private String rigKey;
+	private double cacheTolerance = DEFAULT_CACHE_TOLERANCE;
+	private Preview preview = new HeadlessPreview();
+
+	/**
+	 * Sets where the random walk alignment search shows its progress
+	 */
+	public void setPreview (Preview preview) {
+		this.preview = preview;
+	}
+
+	public void setAlignmentMode (AlignmentMode mode) {
+		alignmentMode = mode;
+	}
+
+	public AlignmentMode getAlignmentMode () {
+		return alignmentMode;
+	}
+
+	/**
+	 * Sets how often, in milliseconds, a frame pair is sampled for the
+	 * background worker to check for color drift.
+	 */
+	public void setRecalibrationInterval (long millis) {
+		recalibrationInterval = millis;
+	}
+
+	/**
+	 * Sets how far (in color levels) the drift of any channel must move
+	 * before a new calibration is published.
+	 */
+	public void setDriftThreshold (int levels) {
+		driftThreshold = levels;
+	}
+
+	/**
+	 * Sets the pixel spacing, in both directions, of the pixels sampled 
+	 * for the background worker. Only takes effect if set before the
+	 * first frame.
+	 */
+	public void setRecalibrationSampleStep (int step) {
+		sampleStep = step;
+	}
+
+	/**
+	 * Sets the largest fraction of samples that may look like foreground
+	 * for a drift to be published
+	 */
+	public void setMaxForeground (double fraction) {
+		maxForeground = fraction;
+	}
+
+	/**
+	 * Loads initial calibration from cache, under rigKey, when it still 
+	 * fits the cameras, and saves any calibration done from scratch there.
+	 * rigKey should identify both devices; the resolution is added by the
+	 * cache.
+	 */
+	public void setCalibrationCache (CalibrationCache cache, String rigKey) {
+		this.cache = cache;
+		this.rigKey = rigKey;
+	}
+
+	/**
+	 * Sets the largest average pixel difference (summed over the three 
+	 * channels) between camera1 and the calibrated camera2 image at which
+	 * a cached calibration is still accepted.
+	 */
+	public void setCacheTolerance (double tolerance) {
+		cacheTolerance = tolerance;
+	}
+
+	/**
+	 * Returns the most recently published calibration, or null before
+	 * initial calibration.
+	 */
+	public CalibrationSnapshot getCalibration () {
+		return published.get();
+	}
 
 	/**
 	 * Checks to make sure that both cameras remain in calibration. If 
@@ -33,11 +192,157 @@ public class CameraCalibrator {
 
 		if (!initialCalibrationDone) {
 			performInitialCalibration();
+			baseSamples = sampleOverlap(offsetX, offsetY);
 			initialCalibrationDone = true;
+			lastRecalibration = System.currentTimeMillis();
+		}
+
+		frameCalibration = published.get();
+		remapStale = true;
+
+		long now = System.currentTimeMillis();
+		if (now - lastRecalibration >= recalibrationInterval &&
+				recalibrating.compareAndSet(false, true)) {
+			lastRecalibration = now;
+			int[][] samples = sampleOverlap(frameCalibration.offsetX, 
+					frameCalibration.offsetY);
+			scheduleRecalibration(samples[0], samples[1], frameCalibration);
+		}
+	}
+
+	/**
+	 * Hands the samples of a frame pair to the background worker, which
+	 * measures the color drift and publishes it if it has moved.
+	 */
+	private void scheduleRecalibration (final int[] samples0, 
+			final int[] samples1, final CalibrationSnapshot base) {
+		getRecalibrator().execute(new Runnable() {
+			public void run () {
+				try {
+					long timeStart = System.currentTimeMillis();
+					int[] drift = getDrift(samples0, samples1);
+					if (drift == null)
+						return;
+					int driftR = drift[0], driftG = drift[1], driftB = drift[2];
+
+					int moved = Math.max(Math.abs(driftR - base.driftR),
+							Math.max(Math.abs(driftG - base.driftG),
+									Math.abs(driftB - base.driftB)));
+					if (moved < driftThreshold)
+						return;
+
+					CalibrationSnapshot next = base.withDrift(driftR, driftG, 
+							driftB);
+					if (published.compareAndSet(base, next)) {
+						System.out.printf("Color drift: R:%d G:%d B:%d" +
+								" (v%d) ... %dms\n", next.driftR, next.driftG, 
+								next.driftB, next.version, 
+								System.currentTimeMillis() - timeStart);
+					}
+				} finally {
+					recalibrating.set(false);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Packs every sampleStep'th pixel in each direction of the overlap of
+	 * the current frame pair at the given image offset: camera1's pixels
+	 * into the first array and their camera2 equivalents into the second.
+	 * The copies stay valid for the worker after the frame's rasters are
+	 * reused.
+	 */
+	private int[][] sampleOverlap (int offsetX, int offsetY) {
+		int xStart = Math.max(0, -offsetX), xEnd = Math.min(width, width - offsetX);
+		int yStart = Math.max(0, -offsetY), yEnd = Math.min(height, height - offsetY);
+		if (xStart >= xEnd || yStart >= yEnd)
+			return new int[2][0];
+
+		int columns = (xEnd - xStart + sampleStep - 1) / sampleStep;
+		int rows = (yEnd - yStart + sampleStep - 1) / sampleStep;
+		int[][] samples = new int[2][rows * columns];
+		int[] row0 = new int[xEnd - xStart], row1 = new int[xEnd - xStart];
+		int n = 0;
+
+		for (int y = yStart; y < yEnd; y += sampleStep) {
+			PackedPixels.readRow(raster0, xStart, y, row0.length, row0, 0);
+			PackedPixels.readRow(raster1, xStart + offsetX, y + offsetY, 
+					row1.length, row1, 0);
+			for (int i = 0; i < row0.length; i += sampleStep, n++) {
+				samples[0][n] = row0[i];
+				samples[1][n] = row1[i];
+			}
+		}
+		return samples;
+	}
+
+	/**
+	 * Returns the red, green and blue drift of paired samples since the
+	 * base samples: the median over the samples of how far the channel's
+	 * difference, camera1 less camera2, has moved. Returns null when 
+	 * more than maxForeground of the samples stray too far from it to be
+	 * background, or the samples do not match the base ones.
+	 */
+	private int[] getDrift (int[] samples0, int[] samples1) {
+		int[] base0 = baseSamples[0], base1 = baseSamples[1];
+		int n = samples0.length;
+		if (n == 0 || n != base0.length)
+			return null;
+
+		int[] changeR = new int[n], changeG = new int[n], changeB = new int[n];
+		for (int i = 0; i < n; i++) {
+			int rgb0 = samples0[i], rgb1 = samples1[i];
+			int was0 = base0[i], was1 = base1[i];
+			changeR[i] = PackedPixels.red(rgb0) - PackedPixels.red(rgb1) - 
+				(PackedPixels.red(was0) - PackedPixels.red(was1));
+			changeG[i] = PackedPixels.green(rgb0) - PackedPixels.green(rgb1) - 
+				(PackedPixels.green(was0) - PackedPixels.green(was1));
+			changeB[i] = PackedPixels.blue(rgb0) - PackedPixels.blue(rgb1) - 
+				(PackedPixels.blue(was0) - PackedPixels.blue(was1));
+		}
+
+		int driftR = median(changeR), driftG = median(changeG), 
+			driftB = median(changeB);
+		int foreground = 0;
+		for (int i = 0; i < n; i++) {
+			if (Math.abs(changeR[i] - driftR) + Math.abs(changeG[i] - driftG) +
+					Math.abs(changeB[i] - driftB) > FOREGROUND_DIFF)
+				foreground++;
+		}
+		if (foreground > maxForeground * n)
+			return null;
+		return new int[] { driftR, driftG, driftB };
+	}
+
+	private static int median (int[] values) {
+		int[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+
+	private synchronized ExecutorService getRecalibrator () {
+		if (recalibrator == null) {
+			recalibrator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread (Runnable r) {
+					Thread t = new Thread(r, "Recalibration Thread");
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+		}
+		return recalibrator;
+	}
+
+	/**
+	 * Stops the background recalibration worker
+	 */
+	public synchronized void shutdown () {
+		if (recalibrator != null) {
+			recalibrator.shutdown();
+			recalibrator = null;
 		}
-		
-		if (((int) (Math.random() * 10)) == 0)
-			findGlobalRGBOffset();
 	}
 
 	/**
@@ -48,14 +353,110 @@ public class CameraCalibrator {
 	public int[] getMatchingPixel (int x, int y) {
 		if (x >= width || x < 0 || y >= height || y < 0)
 			return null;
-		if (x + offsetX >= width || x + offsetX < 0)
-			return null;
-		if (y + offsetY >= height || y + offsetY < 0)
+
+		int argb = getCalibratedImage()[y * width + x];
+		if (!PackedPixels.isValid(argb))
 			return null;
 
-		int[] rgba = raster1.getPixel(x + offsetX, y + offsetY, new int[4]);
-		//return adjustColorGlobally(rgba);
-		return adjustColorLocally(x,y,rgba);
+		return new int[] { PackedPixels.red(argb), PackedPixels.green(argb),
+				PackedPixels.blue(argb), 255 };
+	}
+
+	/**
+	 * Row version of getMatchingPixel. Fills argb with the color adjusted
+	 * camera2 equivalents of length camera1 pixels starting at x, y. 
+	 * Pixels with no equivalent are marked invalid.
+	 */
+	public void getMatchingRow (int x, int y, int length, int[] argb) {
+		int lo = Math.max(x, 0);
+		int hi = Math.min(x + length, width);
+
+		if (y >= height || y < 0 || lo >= hi) {
+			for (int i = 0; i < length; i++)
+				argb[i] = PackedPixels.INVALID;
+			return;
+		}
+
+		for (int i = 0; i < lo - x; i++)
+			argb[i] = PackedPixels.INVALID;
+		for (int i = hi - x; i < length; i++)
+			argb[i] = PackedPixels.INVALID;
+
+		System.arraycopy(getCalibratedImage(), y * width + lo, argb, lo - x, 
+				hi - lo);
+	}
+
+	/**
+	 * Returns camera2's image for the current frame, shifted onto camera1
+	 * and color adjusted, as row-major packed ARGB. Pixel y * width + x 
+	 * is the equivalent of camera1's pixel x, y; pixels with no 
+	 * equivalent are marked invalid. Built once per frame on first use 
+	 * and valid until the next checkCameraCalibration.
+	 */
+	public int[] getCalibratedImage () {
+		if (remapStale)
+			buildRemap();
+		return calibrated1;
+	}
+
+	/**
+	 * Returns camera1's image for the current frame as row-major packed
+	 * ARGB. Built once per frame on first use.
+	 */
+	public int[] getPackedImage0 () {
+		if (remapStale)
+			buildRemap();
+		return packed0;
+	}
+
+	private synchronized void buildRemap () {
+		if (!remapStale)
+			return;
+
+		packed0 = PackedPixels.readRaster(raster0, packed0);
+		if (calibrated1 == null || calibrated1.length != width * height)
+			calibrated1 = new int[width * height];
+
+		for (int y = 0; y < height; y++)
+			remapRow(frameCalibration, y, calibrated1, y * width);
+
+		remapStale = false;
+	}
+
+	/**
+	 * Writes the color adjusted camera2 equivalents of camera1's row y
+	 * into argb starting at offset.
+	 */
+	private void remapRow (CalibrationSnapshot c, int y, int[] argb, 
+			int offset) {
+		int offsetX = c.offsetX, offsetY = c.offsetY;
+		int lo = Math.max(0, -offsetX);
+		int hi = Math.min(width, width - offsetX);
+
+		if (y + offsetY >= height || y + offsetY < 0 || lo >= hi) {
+			for (int i = 0; i < width; i++)
+				argb[offset + i] = PackedPixels.INVALID;
+			return;
+		}
+
+		for (int i = 0; i < lo; i++)
+			argb[offset + i] = PackedPixels.INVALID;
+		for (int i = hi; i < width; i++)
+			argb[offset + i] = PackedPixels.INVALID;
+
+		PackedPixels.readRow(raster1, lo + offsetX, y + offsetY, hi - lo, 
+				argb, offset + lo);
+
+		PixelPlane offR = c.individualOffsetR, offG = c.individualOffsetG,
+			offB = c.individualOffsetB;
+		int driftR = c.driftR, driftG = c.driftG, driftB = c.driftB;
+		for (int px = lo, i = offR.index(lo, y); px < hi; px++, i++) {
+			int rgb = argb[offset + px];
+			argb[offset + px] = PackedPixels.pack(
+					PackedPixels.red(rgb) + offR.get(i) + driftR,
+					PackedPixels.green(rgb) + offG.get(i) + driftG,
+					PackedPixels.blue(rgb) + offB.get(i) + driftB);
+		}
 	}
 
 	/**
@@ -63,10 +464,98 @@ public class CameraCalibrator {
 	 * color settings. 
 	 */
 	private void performInitialCalibration () { 
+		if (loadCachedCalibration()) {
+			publishCalibration();
+			return;
+		}
+
 		findGlobalRGBOffset();
 		findBestImageOffset();
 		findGlobalRGBOffset();
 		findIndividualRGBOffset();
+		publishCalibration();
+
+		if (cache != null) {
+			try {
+				cache.save(rigKey, width, height, published.get());
+			} catch (IOException e) {
+				System.err.println("Could not cache calibration: " + e);
+			}
+		}
+	}
+
+	private void publishCalibration () {
+		CalibrationSnapshot previous = published.get();
+		published.set(new CalibrationSnapshot(
+				previous == null ? 1 : previous.version + 1, offsetX, offsetY,
+				globalOffsetR, globalOffsetG, globalOffsetB, individualOffsetR,
+				individualOffsetG, individualOffsetB));
+	}
+
+	/**
+	 * Adopts the cached calibration for this rig if there is one and the
+	 * current frame pair still agrees with it.
+	 */
+	private boolean loadCachedCalibration () {
+		if (cache == null)
+			return false;
+
+		long timeStart = System.currentTimeMillis();
+		CalibrationSnapshot cached;
+		try {
+			cached = cache.load(rigKey, width, height);
+		} catch (IOException e) {
+			System.err.println("Could not read cached calibration: " + e);
+			return false;
+		}
+		if (cached == null)
+			return false;
+
+		double error = getCalibrationError(cached);
+		if (error > cacheTolerance) {
+			System.out.printf("Rejected cached calibration: Error: %f ... %dms\n",
+					error, System.currentTimeMillis() - timeStart);
+			return false;
+		}
+
+		offsetX = cached.offsetX;
+		offsetY = cached.offsetY;
+		globalOffsetR = cached.globalOffsetR;
+		globalOffsetG = cached.globalOffsetG;
+		globalOffsetB = cached.globalOffsetB;
+		individualOffsetR = cached.individualOffsetR;
+		individualOffsetG = cached.individualOffsetG;
+		individualOffsetB = cached.individualOffsetB;
+
+		System.out.printf("Loaded cached calibration: X-Offset:%d Y-Offset:%d" +
+				" Error: %f ... %dms\n", offsetX, offsetY, error,
+				System.currentTimeMillis() - timeStart);
+		return true;
+	}
+
+	/**
+	 * The average pixel difference between camera1 and camera2 remapped 
+	 * by the given calibration, over a sparse grid of the overlap. Close 
+	 * to the sensor noise while the rig and lighting are unchanged.
+	 */
+	private double getCalibrationError (CalibrationSnapshot c) {
+		int[] row0 = new int[width], row1 = new int[width];
+		long totalDiff = 0;
+		int pixelsDiffed = 0;
+
+		for (int y = 0; y < height; y += CACHE_CHECK_STEP) {
+			remapRow(c, y, row1, 0);
+			PackedPixels.readRow(raster0, 0, y, width, row0, 0);
+			for (int x = 0; x < width; x += CACHE_CHECK_STEP) {
+				if (!PackedPixels.isValid(row1[x]))
+					continue;
+				totalDiff += PackedPixels.diff(row0[x], row1[x]);
+				pixelsDiffed++;
+			}
+		}
+
+		return pixelsDiffed == 0 ? Double.MAX_VALUE : 
+			totalDiff / (double) pixelsDiffed;
 	}
 
 	/**
@@ -74,61 +563,112 @@ public class CameraCalibrator {
 	 * the total pixel error.
 	 */
 	private void findBestImageOffset () {
+		if (alignmentMode == AlignmentMode.PHASE_CORRELATION)
+			findPhaseCorrelationOffset();
+		else
+			findRandomWalkOffset();
+	}
+
+	/**
+	 * Finds the global offset between the two images by phase correlation,
+	 * then settles on the lowest error offset within REFINE_RADIUS of it.
+	 */
+	private void findPhaseCorrelationOffset () {
 		long timeStart = System.currentTimeMillis();
+
+		int[] image0 = PackedPixels.readRaster(raster0, null);
+		int[] image1 = PackedPixels.readRaster(raster1, null);
+
+		// Half resolution is plenty to find the peak, the nearby check
+		// below restores full resolution.
+		phaseCorrelator.setDownsample(width >= 640 ? 2 : 1);
+		int[] shift = phaseCorrelator.findShift(image0, image1, width, height);
+
 		double bestDiff = Double.MAX_VALUE;
+		int bestX = shift[0], bestY = shift[1];
+		for (int dy = -REFINE_RADIUS; dy <= REFINE_RADIUS; dy++) {
+			for (int dx = -REFINE_RADIUS; dx <= REFINE_RADIUS; dx++) {
+				double diff = getOffsetError(image0, image1, 
+						shift[0] + dx, shift[1] + dy);
+				if (diff < bestDiff) {
+					bestDiff = diff;
+					bestX = shift[0] + dx;
+					bestY = shift[1] + dy;
+				}
+			}
+		}
 
-		BufferedImage imageOut = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		offsetX = bestX;
+		offsetY = bestY;
 
-		int consecutiveFail = 0, consecutiveFailThreshold = 20;
+		System.out.printf("Found Image Offset: X-Offset:%d Y-Offset:%d" +
+				" (%.2f, %.2f peak %.2f) Error: %f ... %dms\n",
+				offsetX, offsetY, phaseCorrelator.shiftX, 
+				phaseCorrelator.shiftY, phaseCorrelator.peak, bestDiff, 
+				System.currentTimeMillis() - timeStart);
+	}
 
-		while (consecutiveFail < consecutiveFailThreshold) {
-			WritableRaster rasterOut = imageOut.getRaster();
+	/**
+	 * The average globally color adjusted pixel difference between the 
+	 * two packed images over their overlap at the given offset.
+	 */
+	private double getOffsetError (int[] image0, int[] image1, int offX, 
+			int offY) {
+		long totalDiff = 0;
+		int pixelsDiffed = 0;
+
+		int xStart = Math.max(0, -offX), xEnd = Math.min(width, width - offX);
+		int yStart = Math.max(0, -offY), yEnd = Math.min(height, height - offY);
+
+		if (xStart >= xEnd)
+			return Double.MAX_VALUE;
+
+		DiffKernel kernel = DiffKernel.get();
+		for (int y = yStart; y < yEnd; y++) {
+			int row0 = y * width, row1 = (y + offY) * width + offX;
+			// Camera 1's red takes globalOffsetR, its green globalOffsetB
+			// and its blue globalOffsetG
+			totalDiff += kernel.sumDiff(image0, row0 + xStart, image1, 
+					row1 + xStart, xEnd - xStart, globalOffsetR, globalOffsetB, 
+					globalOffsetG);
+			pixelsDiffed += xEnd - xStart;
+		}
+
+		return pixelsDiffed == 0 ? Double.MAX_VALUE : 
+			totalDiff / (double) pixelsDiffed;
+	}
+
+	/**
+	 * Random walk search for the image offset, starting from the current
+	 * offset. Improvements are shown on the preview, as the two images
+	 * averaged over their overlap, when it wants a frame.
+	 */
+	private void findRandomWalkOffset () {
+		long timeStart = System.currentTimeMillis();
+		double bestDiff = Double.MAX_VALUE;
 
-			int totalDiff = 0;
-			int pixelsDiffed = 0;
+		int[] image0 = PackedPixels.readRaster(raster0, null);
+		int[] image1 = PackedPixels.readRaster(raster1, null);
+		int[] blend = null;
 
+		int consecutiveFail = 0, consecutiveFailThreshold = 20;
+
+		while (consecutiveFail < consecutiveFailThreshold) {
 			int xShift = ((int) (Math.random() * 3)) - 1;
 			int yShift = ((int) (Math.random() * 3)) - 1;
 
 			int currXOffset = offsetX + xShift;
 			int currYOffset = offsetY + yShift;
 
-			for (int y = 0; y < height; y++) {
-				for (int x = 0; x < width; x++) {
-					rasterOut.setPixel(x, y, new int[] {0,0,0,255});
-					if (x + currXOffset >= width || x + currXOffset < 0)
-						continue;
-					if (y + currYOffset >= height || y + currYOffset < 0)
-						continue;
-
-					int[] rgb0 = raster0.getPixel(x, y, new int[4]);
-					int[] rgb1 = raster1.getPixel(x + currXOffset, 
-							y + currYOffset, 
-							new int[4]);
-					rgb1 = adjustColorGlobally(rgb1);
-
-					int[] pixAvg = new int[4];
-					pixAvg[0] = (rgb0[0] + rgb1[0]) / 2;
-					pixAvg[1] = (rgb0[1] + rgb1[1]) / 2;
-					pixAvg[2] = (rgb0[2] + rgb1[2]) / 2;
-					pixAvg[3] = 255;
-
-					pixelsDiffed++;
-
-					int pixDiff = Math.abs(rgb0[0] - rgb1[0]) +
-					Math.abs(rgb0[1] - rgb1[1]) +
-					Math.abs(rgb0[2] - rgb1[2]);
-
-					totalDiff += pixDiff;
-
-					rasterOut.setPixel(x, y, pixAvg);
-				}
-			}
-
-			double currDiff = totalDiff / (double) pixelsDiffed;			
+			double currDiff = getOffsetError(image0, image1, currXOffset, 
+					currYOffset);
 
 			if (currDiff < bestDiff) {
-				DualViewer.displayImageLeft(imageOut);
+				if (preview.wantsFrame(Preview.LEFT)) {
+					blend = blendImages(image0, image1, currXOffset, currYOffset,
+							blend);
+					preview.showImage(Preview.LEFT, blend, width, height);
+				}
 
 				offsetX = currXOffset;
 				offsetY = currYOffset;
@@ -145,6 +685,36 @@ public class CameraCalibrator {
 				System.currentTimeMillis() - timeStart);
 	}
 
+	/**
+	 * Averages image0 with the globally color adjusted image1 at the given
+	 * offset, black outside their overlap
+	 */
+	private int[] blendImages (int[] image0, int[] image1, int offX, int offY,
+			int[] out) {
+		if (out == null)
+			out = new int[width * height];
+		for (int y = 0, i = 0; y < height; y++) {
+			for (int x = 0; x < width; x++, i++) {
+				int x1 = x + offX, y1 = y + offY;
+				if (x1 < 0 || x1 >= width || y1 < 0 || y1 >= height) {
+					out[i] = PackedPixels.OPAQUE;
+					continue;
+				}
+				// Camera 1's red takes globalOffsetR, its green
+				// globalOffsetB and its blue globalOffsetG
+				int argb0 = image0[i], argb1 = image1[y1 * width + x1];
+				out[i] = PackedPixels.pack(
+						(PackedPixels.red(argb0) + PackedPixels.red(argb1) + 
+								globalOffsetR) / 2,
+						(PackedPixels.green(argb0) + PackedPixels.green(argb1) + 
+								globalOffsetB) / 2,
+						(PackedPixels.blue(argb0) + PackedPixels.blue(argb1) + 
+								globalOffsetG) / 2);
+			}
+		}
+		return out;
+	}
+
 	/**
 	 * Looks at the average RGB values of all pixels for each 
 	 * webcam and comes up with a rough way to map colors 
@@ -152,49 +722,64 @@ public class CameraCalibrator {
 	 */
 	private void findGlobalRGBOffset () {
 		long timeStart = System.currentTimeMillis();
-		int primaryR = 0, primaryG = 0, primaryB = 0;
-		int secondaryR = 0, secondaryG = 0, secondaryB = 0;
 
+		int[] offsets = computeGlobalRGBOffset(raster0, raster1, offsetX, 
+				offsetY);
+		globalOffsetR = offsets[0];
+		globalOffsetG = offsets[1];
+		globalOffsetB = offsets[2];
+
+		System.out.printf("Global RGB Offset: R:%d G:%d B:%d ... %dms\n", 
+				globalOffsetR,globalOffsetG, globalOffsetB, 
+				System.currentTimeMillis() - timeStart);
+	}
+
+	/**
+	 * Computes the global RGB offsets from the overlap between the two
+	 * rasters at the given image offset.
+	 */
+	private int[] computeGlobalRGBOffset (Raster raster0, Raster raster1,
+			int offsetX, int offsetY) {
+		int width = raster0.getWidth(), height = raster0.getHeight();
+		long primaryR = 0, primaryG = 0, primaryB = 0;
+		long secondaryR = 0, secondaryG = 0, secondaryB = 0;
+
+		int xStart = Math.max(0, -offsetX), xEnd = Math.min(width, width - offsetX);
+		int yStart = Math.max(0, -offsetY), yEnd = Math.min(height, height - offsetY);
+		if (xStart >= xEnd || yStart >= yEnd)
+			return new int[3];
+
+		int[] row0 = new int[xEnd - xStart], row1 = new int[xEnd - xStart];
 		int pixelsScanned = 0;
 
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				if (x + offsetX >= width || x + offsetX < 0)
-					continue;
-				if (y + offsetY >= height || y + offsetY < 0)
-					continue;
+		for (int y = yStart; y < yEnd; y++) {
+			PackedPixels.readRow(raster0, xStart, y, row0.length, row0, 0);
+			PackedPixels.readRow(raster1, xStart + offsetX, y + offsetY, 
+					row1.length, row1, 0);
 
+			for (int i = 0; i < row0.length; i++) {
 				pixelsScanned++;
 
-				int[] rgb0 = raster0.getPixel(x, y, new int[4]);
-				int[] rgb1 = raster1.getPixel(x + offsetX, 
-						y + offsetY, new int[4]);
+				primaryR += PackedPixels.red(row0[i]);
+				primaryG += PackedPixels.green(row0[i]);
+				primaryB += PackedPixels.blue(row0[i]);
 
-				primaryR += rgb0[0];
-				primaryG += rgb0[1];
-				primaryB += rgb0[2];
-
-				secondaryR += rgb1[0];
-				secondaryG += rgb1[1];
-				secondaryB += rgb1[2];
+				secondaryR += PackedPixels.red(row1[i]);
+				secondaryG += PackedPixels.green(row1[i]);
+				secondaryB += PackedPixels.blue(row1[i]);
 			}
 		}
 
-		int primaryAvgR = primaryR / pixelsScanned;
-		int primaryAvgG = primaryG / pixelsScanned;
-		int primaryAvgB = primaryB / pixelsScanned;
-
-		int secondaryAvgR = secondaryR / pixelsScanned;
-		int secondaryAvgG = secondaryB / pixelsScanned;
-		int secondaryAvgB = secondaryG / pixelsScanned;
+		int primaryAvgR = (int) (primaryR / pixelsScanned);
+		int primaryAvgG = (int) (primaryG / pixelsScanned);
+		int primaryAvgB = (int) (primaryB / pixelsScanned);
 
-		globalOffsetR = primaryAvgR - secondaryAvgR;
-		globalOffsetG = primaryAvgG - secondaryAvgG;
-		globalOffsetB = primaryAvgB - secondaryAvgB;
+		int secondaryAvgR = (int) (secondaryR / pixelsScanned);
+		int secondaryAvgG = (int) (secondaryB / pixelsScanned);
+		int secondaryAvgB = (int) (secondaryG / pixelsScanned);
 
-		System.out.printf("Global RGB Offset: R:%d G:%d B:%d ... %dms\n", 
-				globalOffsetR,globalOffsetG, globalOffsetB, 
-				System.currentTimeMillis() - timeStart);
+		return new int[] { primaryAvgR - secondaryAvgR, 
+				primaryAvgG - secondaryAvgG, primaryAvgB - secondaryAvgB };
 	}
 
 	/**
@@ -204,53 +789,36 @@ public class CameraCalibrator {
 	private void findIndividualRGBOffset () {
 		long timeStart = System.currentTimeMillis();
 
-		if (individualOffsetR == null || individualOffsetG == null || 
-				individualOffsetB == null) {
-			individualOffsetR = new int[width][height];
-			individualOffsetG = new int[width][height];
-			individualOffsetB = new int[width][height];
-		}
+		// Always fresh planes: earlier ones may belong to a published snapshot
+		individualOffsetR = new PixelPlane(width, height);
+		individualOffsetG = new PixelPlane(width, height);
+		individualOffsetB = new PixelPlane(width, height);
 
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				if (x + offsetX >= width || x + offsetX < 0)
-					continue;
+		int lo = Math.max(0, -offsetX), hi = Math.min(width, width - offsetX);
+		if (lo < hi) {
+			int[] row0 = new int[hi - lo], row1 = new int[hi - lo];
+			for (int y = 0; y < height; y++) {
 				if (y + offsetY >= height || y + offsetY < 0)
 					continue;
 
-				int[] rgb0 = raster0.getPixel(x, y, new int[4]);
-				int[] rgb1 = raster1.getPixel(x + offsetX, 
-						y + offsetY, new int[4]);
-
-				individualOffsetR[x][y] = rgb0[0] - rgb1[0];
-				individualOffsetG[x][y] = rgb0[1] - rgb1[1];
-				individualOffsetB[x][y] = rgb0[2] - rgb1[2];
+				PackedPixels.readRow(raster0, lo, y, row0.length, row0, 0);
+				PackedPixels.readRow(raster1, lo + offsetX, y + offsetY, 
+						row1.length, row1, 0);
+
+				for (int x = 0, i = individualOffsetR.index(lo, y); 
+						x < row0.length; x++, i++) {
+					int rgb0 = row0[x], rgb1 = row1[x];
+					individualOffsetR.set(i, PackedPixels.red(rgb0) - 
+							PackedPixels.red(rgb1));
+					individualOffsetG.set(i, PackedPixels.green(rgb0) - 
+							PackedPixels.green(rgb1));
+					individualOffsetB.set(i, PackedPixels.blue(rgb0) - 
+							PackedPixels.blue(rgb1));
+				}
 			}
 		}
 
 		System.out.printf("Found individual RGB Offset ... %dms\n", 
 				System.currentTimeMillis() - timeStart);
 	}
-	
-	/**
-	 * Uses local color offset to specifically adjust the 
-	 * color on the given rgba value.
-	 */
-	private int[] adjustColorLocally (int x, int y, int[] rgba) {
-		rgba[0] += individualOffsetR[x][y];
-		rgba[1] += individualOffsetG[x][y];
-		rgba[2] += individualOffsetB[x][y];
-		return rgba;
-	}
-	
-	/**
-	 * Uses global color offset values to adjust the color on the
-	 * given rgba value.
-	 */
-	private int[] adjustColorGlobally (int[] rgba) {
-		rgba[0] += globalOffsetR;
-		rgba[1] += globalOffsetB;
-		rgba[2] += globalOffsetG;
-		return rgba;
-	}
 }
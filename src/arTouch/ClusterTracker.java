@@ -0,0 +1,219 @@
+package arTouch;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import arTouch.Clusterer.Cluster;
+
+/**
+ * Follows the clusters of one camera from frame to frame. Each cluster is
+ * matched to the track whose predicted position it falls closest to, and
+ * tracks move on by their smoothed per-frame velocity.
+ *
+ * Between full scans only the regions of interest around the predicted
+ * tracks need to be searched: getRegions returns those, expanded by a
+ * margin and by each track's speed, or null when the next frame should be
+ * scanned in full. Full scans happen every fullScanInterval frames, and on
+ * every frame while nothing is tracked, so that new objects are picked up.
+ */
+public class ClusterTracker {
+	public static final int DEFAULT_MARGIN = 24;
+	public static final int DEFAULT_FULL_SCAN_INTERVAL = 15;
+
+	/**
+	 * The number of frames in a row a track may go unmatched before it is
+	 * dropped
+	 */
+	public static final int MAX_MISSED = 2;
+
+	/**
+	 * A tracked object. Position and bounds are from the last frame it was
+	 * matched in; velocity is in pixels per frame.
+	 */
+	public static class Track {
+		public final int id;
+		public Cluster cluster;
+		public double x, y, velocityX, velocityY;
+		public int minX, maxX, minY, maxY;
+		int age, missed;
+
+		Track (int id, Cluster cluster) {
+			this.id = id;
+			setCluster(cluster);
+		}
+
+		void setCluster (Cluster cluster) {
+			this.cluster = cluster;
+			x = cluster.getAvgX();
+			y = cluster.getAvgY();
+			minX = cluster.minX;
+			maxX = cluster.maxX;
+			minY = cluster.minY;
+			maxY = cluster.maxY;
+		}
+
+		/**
+		 * Frames since the track was last matched, 0 if it was this frame
+		 */
+		public int getMissed () {
+			return missed;
+		}
+
+		public int getAge () {
+			return age;
+		}
+
+		public double getPredictedX () {
+			return x + velocityX * (missed + 1);
+		}
+
+		public double getPredictedY () {
+			return y + velocityY * (missed + 1);
+		}
+	}
+
+	private ArrayList<Track> tracks = new ArrayList<Track>();
+	private int nextId = 1;
+	private int frame = 0;
+	private int margin = DEFAULT_MARGIN;
+	private int fullScanInterval = DEFAULT_FULL_SCAN_INTERVAL;
+
+	/**
+	 * Sets how far, in pixels, regions reach past a track's predicted
+	 * bounds
+	 */
+	public void setMargin (int margin) {
+		this.margin = margin;
+	}
+
+	/**
+	 * Sets how often, in frames, the whole image is scanned for new
+	 * objects; 1 scans every frame in full.
+	 */
+	public void setFullScanInterval (int frames) {
+		if (frames < 1)
+			throw new IllegalArgumentException("Interval must be at least 1");
+		fullScanInterval = frames;
+	}
+
+	public List<Track> getTracks () {
+		return Collections.unmodifiableList(tracks);
+	}
+
+	/**
+	 * Returns the regions the next frame of a width x height image should
+	 * be searched in, none of them overlapping or touching, or null if it
+	 * should be scanned in full.
+	 */
+	public ArrayList<Rectangle> getRegions (int width, int height) {
+		if (tracks.isEmpty() || frame % fullScanInterval == 0)
+			return null;
+
+		Rectangle image = new Rectangle(0, 0, width, height);
+		ArrayList<Rectangle> regions = new ArrayList<Rectangle>();
+		for (Track t : tracks) {
+			int steps = t.missed + 1;
+			int dx = (int) Math.round(t.velocityX * steps);
+			int dy = (int) Math.round(t.velocityY * steps);
+			int reachX = margin + Math.abs(dx), reachY = margin + Math.abs(dy);
+
+			Rectangle region = new Rectangle(t.minX + dx - reachX,
+					t.minY + dy - reachY, t.maxX - t.minX + 1 + 2 * reachX,
+					t.maxY - t.minY + 1 + 2 * reachY).intersection(image);
+			if (!region.isEmpty())
+				regions.add(region);
+		}
+
+		return merge(regions);
+	}
+
+	/**
+	 * Replaces regions that overlap or touch, diagonally included, by
+	 * their bounding rectangle until no two are adjacent. No pixel is
+	 * searched twice, and a cluster crossing from one region into a
+	 * neighboring one is not cut in two at the seam.
+	 */
+	static ArrayList<Rectangle> merge (ArrayList<Rectangle> regions) {
+		boolean merged = true;
+		while (merged) {
+			merged = false;
+			for (int i = 0; i < regions.size() && !merged; i++) {
+				Rectangle r = regions.get(i);
+				Rectangle grown = new Rectangle(r.x - 1, r.y - 1, r.width + 2,
+						r.height + 2);
+				for (int j = i + 1; j < regions.size(); j++) {
+					if (grown.intersects(regions.get(j))) {
+						regions.set(i, regions.get(i).union(regions.remove(j)));
+						merged = true;
+						break;
+					}
+				}
+			}
+		}
+		return regions;
+	}
+
+	/**
+	 * Matches the clusters found in a frame to the tracks, starts tracks
+	 * for the clusters left over and drops tracks that have gone unmatched
+	 * for too long. The clusters should come from the regions returned by
+	 * getRegions for this frame.
+	 */
+	public void update (List<Cluster> clusters) {
+		frame++;
+
+		// Every pairing within a track's gate, closest first
+		ArrayList<double[]> pairs = new ArrayList<double[]>();
+		for (int t = 0; t < tracks.size(); t++) {
+			Track track = tracks.get(t);
+			double px = track.getPredictedX(), py = track.getPredictedY();
+			double gateX = (track.maxX - track.minX) / 2.0 + margin;
+			double gateY = (track.maxY - track.minY) / 2.0 + margin;
+
+			for (int c = 0; c < clusters.size(); c++) {
+				Cluster cluster = clusters.get(c);
+				double dx = cluster.getAvgX() - px, dy = cluster.getAvgY() - py;
+				if (Math.abs(dx) <= gateX && Math.abs(dy) <= gateY)
+					pairs.add(new double[] { dx * dx + dy * dy, t, c });
+			}
+		}
+		Collections.sort(pairs, new Comparator<double[]>() {
+			public int compare (double[] a, double[] b) {
+				return Double.compare(a[0], b[0]);
+			}
+		});
+
+		boolean[] trackMatched = new boolean[tracks.size()];
+		boolean[] clusterMatched = new boolean[clusters.size()];
+		for (double[] pair : pairs) {
+			int t = (int) pair[1], c = (int) pair[2];
+			if (trackMatched[t] || clusterMatched[c])
+				continue;
+			trackMatched[t] = clusterMatched[c] = true;
+
+			Track track = tracks.get(t);
+			double oldX = track.x, oldY = track.y;
+			int steps = track.missed + 1;
+			track.setCluster(clusters.get(c));
+			track.velocityX = (track.velocityX + (track.x - oldX) / steps) / 2;
+			track.velocityY = (track.velocityY + (track.y - oldY) / steps) / 2;
+			track.missed = 0;
+			track.age++;
+		}
+
+		ArrayList<Track> kept = new ArrayList<Track>();
+		for (int t = 0; t < tracks.size(); t++) {
+			Track track = tracks.get(t);
+			if (!trackMatched[t] && ++track.missed > MAX_MISSED)
+				continue;
+			kept.add(track);
+		}
+		for (int c = 0; c < clusters.size(); c++)
+			if (!clusterMatched[c])
+				kept.add(new Track(nextId++, clusters.get(c)));
+		tracks = kept;
+	}
+}
@@ -1,11 +1,8 @@
 package arTouch;
 
-import java.awt.image.BufferedImage;
 import java.awt.image.Raster;
-import java.awt.image.WritableRaster;
 import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.Arrays;
 
 /**
  * Creates clusters of interesting pixels
@@ -14,25 +11,155 @@ import java.util.Hashtable;
  */
 public class Clusterer {
 	/**
-	 * The cluster class is a simple way to store lists of x,y points.
+	 * The cluster class stores a set of x,y points as horizontal runs, 
+	 * one or more per row. Area, bounding box and coordinate sums are 
+	 * kept up to date as points are added.
+	 * 
+	 * Points are expected in raster order (as the ComponentLabeler emits
+	 * them); a point continuing the last run just extends it.
 	 */
 	public static class Cluster {
-		public ArrayList<Integer> x = new ArrayList<Integer>();
-		public ArrayList<Integer> y = new ArrayList<Integer>();
+		/**
+		 * Runs are stored as (y, startX, endX) triples, endX exclusive
+		 */
+		private int[] runs = new int[3 * 8];
+		private int runCount = 0;
+		private int area = 0;
+		private long sumX = 0, sumY = 0;
 		public int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE;
+		public int minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
 
 		public void add (int x, int y) {
-			this.x.add(x);
-			this.y.add(y);
+			int last = 3 * (runCount - 1);
+			if (runCount > 0 && runs[last] == y && runs[last + 2] == x) {
+				runs[last + 2] = x + 1;
+				updateStatistics(x, x + 1, y);
+			} else {
+				addRun(y, x, x + 1);
+			}
+		}
+
+		/**
+		 * Adds the points startX (inclusive) to endX (exclusive) of row y
+		 */
+		public void addRun (int y, int startX, int endX) {
+			if (3 * runCount == runs.length) {
+				int[] bigger = new int[runs.length * 2];
+				System.arraycopy(runs, 0, bigger, 0, runs.length);
+				runs = bigger;
+			}
+			int i = 3 * runCount++;
+			runs[i] = y;
+			runs[i + 1] = startX;
+			runs[i + 2] = endX;
+			updateStatistics(startX, endX, y);
+		}
 
-			if (x < minX)
-				minX = x;
-			if (x > maxX)
-				maxX = x;
+		private void updateStatistics (int startX, int endX, int y) {
+			int length = endX - startX;
+			area += length;
+			// sum of startX .. endX - 1
+			sumX += (long) (startX + endX - 1) * length / 2;
+			sumY += (long) y * length;
+
+			if (startX < minX)
+				minX = startX;
+			if (endX - 1 > maxX)
+				maxX = endX - 1;
+			if (y < minY)
+				minY = y;
+			if (y > maxY)
+				maxY = y;
 		}
 
 		public int size () {
-			return x.size();
+			return area;
+		}
+
+		public int getRunCount () {
+			return runCount;
+		}
+
+		public int getRunY (int run) {
+			return runs[3 * run];
+		}
+
+		public int getRunStartX (int run) {
+			return runs[3 * run + 1];
+		}
+
+		/**
+		 * Returns the x just past the end of the run
+		 */
+		public int getRunEndX (int run) {
+			return runs[3 * run + 2];
+		}
+
+		/**
+		 * Returns a copy of this cluster moved by dx, dy
+		 */
+		public Cluster translate (int dx, int dy) {
+			Cluster moved = new Cluster();
+			for (int run = 0; run < runCount; run++)
+				moved.addRun(getRunY(run) + dy, getRunStartX(run) + dx, 
+						getRunEndX(run) + dx);
+			return moved;
+		}
+
+		/**
+		 * Returns this cluster, found on a pyramid level, in the
+		 * coordinates of the level the given number of levels below: each
+		 * pixel becomes a 2^levels square. Runs are expected in raster
+		 * order.
+		 */
+		public Cluster upscale (int levels) {
+			int factor = 1 << levels;
+			Cluster scaled = new Cluster();
+			for (int first = 0, last; first < runCount; first = last) {
+				int y = getRunY(first);
+				for (last = first; last < runCount && getRunY(last) == y; last++);
+
+				for (int dy = 0; dy < factor; dy++)
+					for (int run = first; run < last; run++)
+						scaled.addRun(y * factor + dy,
+								getRunStartX(run) * factor, getRunEndX(run) * factor);
+			}
+			return scaled;
+		}
+
+		/**
+		 * Returns the pixels of the pyramid level the given number of
+		 * levels above this cluster's that cover any of its pixels. Runs
+		 * are expected in raster order.
+		 */
+		public Cluster downscale (int levels) {
+			Cluster scaled = new Cluster();
+			for (int first = 0, last; first < runCount; first = last) {
+				int y = getRunY(first) >> levels;
+				for (last = first; last < runCount &&
+						getRunY(last) >> levels == y; last++);
+
+				// Every run of the rows falling on level row y, as
+				// (start, end) pairs packed into longs for sorting
+				int count = last - first;
+				long[] sorted = new long[count];
+				for (int run = first; run < last; run++)
+					sorted[run - first] = (long) (getRunStartX(run) >> levels) << 32 |
+						((getRunEndX(run) - 1 >> levels) + 1);
+				Arrays.sort(sorted);
+
+				int start = (int) (sorted[0] >> 32), end = (int) sorted[0];
+				for (int i = 1; i < count; i++) {
+					int s = (int) (sorted[i] >> 32), e = (int) sorted[i];
+					if (s > end) {
+						scaled.addRun(y, start, end);
+						start = s;
+					}
+					end = Math.max(end, e);
+				}
+				scaled.addRun(y, start, end);
+			}
+			return scaled;
 		}
 
 		public String toString() {
@@ -45,167 +172,82 @@ public class Clusterer {
 		public int getWidth () {
 			return maxX - minX;
 		}
+
+		/**
+		 * Provides a rough estimate of the height of this cluster
+		 */
+		public int getHeight () {
+			return maxY - minY;
+		}
 		
 		public double getAvgX () {
-			int sum = 0;
-			
-			for (int xVal : x)
-				sum += xVal;
-			
-			return sum / (double) x.size();
+			return sumX / (double) area;
+		}
+
+		public double getAvgY () {
+			return sumY / (double) area;
 		}
 	}
 	
-	public interface pixelAccess {
-		int[] getPixel (int x, int y);
+	/**
+	 * Supplies pixels a row segment at a time as packed ARGB ints, 
+	 * filling a buffer owned by the caller. Pixels without a valid 
+	 * value are returned with an alpha of zero. Implementations must 
+	 * allow concurrent calls for different rows.
+	 */
+	public interface RowAccess {
+		void getRow (int x, int y, int length, int[] argb);
 	}
 	
 	/**
-	 * Simple pixel access class -- gets pixel information
+	 * Simple row access class -- gets pixel information
 	 * directly from the raster.
 	 */
-	public static class RasterPixelAccess implements pixelAccess {
+	public static class RasterRowAccess implements RowAccess {
 		public Raster raster;
 		
-		public int[] getPixel(int x, int y) {
-			return raster.getPixel(x, y, new int[4]);
-		}
-	}
-	
-	public static class CalibratedPixelAccess implements pixelAccess {
-		public CameraCalibrator cameraCalibrator;
-
-		public int[] getPixel(int x, int y) {
-			return cameraCalibrator.getMatchingPixel(x, y);
+		public void getRow(int x, int y, int length, int[] argb) {
+			PackedPixels.readRow(raster, x, y, length, argb, 0);
 		}
 	}
 	
 	/**
-	 * Performs a single scan through the image looking for contiguous 
-	 * "hot" pixels. These contiguous hot pixels are segmented into 
-	 * clusters. Only clusters over a certain threshold are returned.
+	 * Row access to a rectangle of another source, so that a region can be
+	 * processed as if it were a whole image. Row y, pixel x of the region
+	 * is pixel x + left, y + top of the source.
 	 */
-	public static ArrayList<Cluster> findClusters (pixelAccess pa0, pixelAccess pa1,
-			int width, int height, int minDiffThreshold, int minClusterSize) {
-		Hashtable<Cluster, Boolean> clusters = 
-			new Hashtable<Cluster,Boolean>();
-
-		Hashtable<Integer,Cluster> clusterCoords = 
-			new Hashtable<Integer,Cluster>();
-
-		Cluster currentCluster = null;
-
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				int[] rgb0 = pa0.getPixel(x, y);
-				int[] rgb1 = pa1.getPixel(x, y);
-
-				if (rgb0 == null || rgb1 == null)
-					continue;
-
-				int pixDiff = Math.abs(rgb0[0] - rgb1[0]) +
-				Math.abs(rgb0[1] - rgb1[1]) +
-				Math.abs(rgb0[2] - rgb1[2]);
-
-				if (pixDiff < minDiffThreshold) {
-					currentCluster = null;
-					clusterCoords.remove(x);
-					continue;
-				}
-
-				if (currentCluster != null && clusterCoords.containsKey(x) &&
-						!clusterCoords.get(x).equals(currentCluster)) {
-					// merge clusters
-					Cluster other = clusterCoords.get(x);
-					Cluster larger, smaller;
-
-					if (currentCluster.size() > other.size()) {
-						larger = currentCluster;
-						smaller = other;
-					} else {
-						larger = other;
-						smaller = currentCluster;
-					}
+	public static class RegionRowAccess implements RowAccess {
+		public RowAccess source;
+		public int left, top;
 
-					ArrayList<Integer> smallerX = smaller.x;
-					ArrayList<Integer> smallerY = smaller.y;
-
-					for (int i = 0; i < smallerX.size(); i++) {
-						larger.add(smallerX.get(i), smallerY.get(i));
-						if (smallerY.get(i) >= y - 1) {
-							//TODO: Why does this assertion fail?
-							//assert clusterCoords.containsKey(smallerX.get(i));
-							clusterCoords.put(smallerX.get(i), larger);
-						}
-					}
-					clusters.remove(smaller);
-					currentCluster = larger;
-				} else if (clusterCoords.containsKey(x))
-					currentCluster = clusterCoords.remove(x);
-
-				if (currentCluster == null) { // Create a new cluster
-					Cluster newCluster = new Cluster();
-					newCluster.add(x,y);
-
-					clusters.put(newCluster, true);
-					clusterCoords.put(x, newCluster);
-					currentCluster = newCluster;
-				} else { // Expand Current Cluster
-					currentCluster.add(x,y);
-					clusterCoords.put(x, currentCluster);
-					if (x > 0)
-						clusterCoords.put(x-1, currentCluster);
-				}
-			}
+		public void getRow(int x, int y, int length, int[] argb) {
+			source.getRow(x + left, y + top, length, argb);
 		}
-		return findLargeClusters(clusters, minClusterSize);
 	}
 	
 	/**
-	 * Returns a list containing only the clusters over a certain
-	 * threshold.
+	 * Gets the color adjusted pixels of the second camera, aligned
+	 * to the first.
 	 */
-	private static ArrayList<Cluster> findLargeClusters 
-	(Hashtable<Cluster,Boolean> clusterHT, int minClusterSize) {
-		ArrayList<Cluster> out = new ArrayList<Cluster>();
-		Enumeration<Cluster> clusters = clusterHT.keys();
+	public static class CalibratedRowAccess implements RowAccess {
+		public CameraCalibrator cameraCalibrator;
 
-		while (clusters.hasMoreElements()) {
-			Cluster c = clusters.nextElement();
-			if (c.size() > minClusterSize)
-				out.add(c);
+		public void getRow(int x, int y, int length, int[] argb) {
+			cameraCalibrator.getMatchingRow(x, y, length, argb);
 		}
-
-		return out;
 	}
 	
 	/**
-	 * Paints each cluster red and displays the resulting image
+	 * Performs a scan through the image looking for contiguous 
+	 * "hot" pixels. These contiguous hot pixels are segmented into 
+	 * clusters. Only clusters over a certain threshold are returned.
+	 * 
+	 * This uses a throwaway 8-connected ComponentLabeler; callers 
+	 * running every frame should keep their own labeler instead.
 	 */
-	public static void displayClusters (ArrayList<Cluster> clusters, int width,
-			int height, Raster base, boolean left) {
-		BufferedImage imageOut = new BufferedImage(width, height, 
-				BufferedImage.TYPE_INT_ARGB);
-
-		WritableRaster rasterOut = imageOut.getRaster();
-
-		rasterOut.setDataElements(0, 0, base);
-
-		for (Cluster cluster : clusters) {
-			ArrayList<Integer> xLocs = cluster.x;
-			ArrayList<Integer> yLocs = cluster.y;
-
-			for (int i = 0; i < xLocs.size(); i++) {
-				int[] rgba = rasterOut.getPixel(xLocs.get(i), yLocs.get(i),
-						new int[4]);
-				rgba[0] = 255;
-				rasterOut.setPixel(xLocs.get(i), yLocs.get(i), new int[] { 255,0,0,255});
-			}
-		}
-
-		if (left)
-			DualViewer.displayImageLeft(imageOut);
-		else
-			DualViewer.displayImageRight(imageOut);
+	public static ArrayList<Cluster> findClusters (RowAccess ra0, RowAccess ra1,
+			int width, int height, int minDiffThreshold, int minClusterSize) {
+		return new ComponentLabeler().findClusters(ra0, ra1, width, height,
+				minDiffThreshold, minClusterSize);
 	}
 }
@@ -0,0 +1,371 @@
+package arTouch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import arTouch.Clusterer.Cluster;
+import arTouch.Clusterer.RowAccess;
+
+/**
+ * Finds clusters of hot pixels by connected component labeling. The
+ * first pass gives every hot pixel a provisional label and records
+ * label equivalences in a union-find forest; the second resolves 
+ * labels to their roots, counts them, and builds Clusters only for
+ * components over the size threshold. Hot pixels are found a row at a
+ * time as a bitmask by DiffKernel.hotMask, and the first pass only
+ * visits the set bits.
+ * 
+ * In parallel mode the first pass is split into horizontal strips that 
+ * are labeled independently on a ForkJoinPool. Each strip draws its 
+ * labels from its own range, so the strips never touch each other's
+ * equivalences; components crossing a strip seam are then joined by
+ * scanning the first row of each strip against the row above. The 
+ * result is identical to the sequential mode.
+ * 
+ * The label and equivalence buffers are kept between calls, so a 
+ * labeler should be reused frame to frame. It is not thread safe.
+ */
+public class ComponentLabeler {
+	/**
+	 * Pixels are connected to their left and upper neighbors
+	 */
+	public static final int FOUR_CONNECTED = 4;
+
+	/**
+	 * Pixels are also connected to their upper diagonal neighbors
+	 */
+	public static final int EIGHT_CONNECTED = 8;
+
+	private int connectivity;
+	private int[] labels = new int[0];
+	private int[] parent = new int[256];
+	private int[] counts = new int[0];
+	private int[] clusterIndex = new int[0];
+
+	/**
+	 * Labels in use are [rangeStart[i], rangeEnd[i]) for each strip i
+	 */
+	private int[] rangeStart = new int[1], rangeEnd = new int[1];
+	private int rangeCount;
+
+	private ForkJoinPool pool;
+	private int strips = 1;
+	private int[][] rowBuffers0 = new int[1][0], rowBuffers1 = new int[1][0];
+	private long[][] hotMasks = new long[1][0];
+	private final DiffKernel kernel = DiffKernel.get();
+
+	/**
+	 * Creates an 8-connected labeler, which groups pixels the same way the
+	 * original single scan clusterer did.
+	 */
+	public ComponentLabeler () {
+		this(EIGHT_CONNECTED);
+	}
+
+	public ComponentLabeler (int connectivity) {
+		if (connectivity != FOUR_CONNECTED && connectivity != EIGHT_CONNECTED)
+			throw new IllegalArgumentException("Connectivity must be 4 or 8");
+		this.connectivity = connectivity;
+	}
+
+	public int getConnectivity () {
+		return connectivity;
+	}
+
+	/**
+	 * Labels strips of the image in parallel on the given pool. Passing a 
+	 * null pool or a single strip returns to sequential labeling. The row 
+	 * accessors given to findClusters must then allow concurrent use.
+	 */
+	public void setParallel (ForkJoinPool pool, int strips) {
+		this.pool = strips > 1 ? pool : null;
+		this.strips = this.pool == null ? 1 : strips;
+		rowBuffers0 = new int[this.strips][0];
+		rowBuffers1 = new int[this.strips][0];
+		hotMasks = new long[this.strips][0];
+		rangeStart = new int[this.strips];
+		rangeEnd = new int[this.strips];
+	}
+
+	/**
+	 * Returns the label buffer of the last call. Each entry is the root 
+	 * label of the pixel's component, or 0 for pixels that were not hot.
+	 */
+	public int[] getLabels () {
+		return labels;
+	}
+
+	/**
+	 * Tells whether a pixel (index y * width + x) was part of one of the 
+	 * clusters returned by the last call.
+	 */
+	public boolean isClustered (int pixel) {
+		int root = labels[pixel];
+		return root != 0 && clusterIndex[root] >= 0;
+	}
+
+	/**
+	 * Finds every contiguous group of pixels whose RGB difference between
+	 * the two sources is at least minDiffThreshold and returns those 
+	 * with more than minClusterSize pixels.
+	 */
+	public ArrayList<Cluster> findClusters (RowAccess ra0, RowAccess ra1,
+			int width, int height, int minDiffThreshold, int minClusterSize) {
+		if (labels.length < width * height)
+			labels = new int[width * height];
+		parent[0] = 0;
+
+		int stripCount = Math.min(strips, height);
+		if (stripCount <= 1) {
+			rangeCount = 1;
+			labelStrip(0, ra0, ra1, width, 0, height, minDiffThreshold);
+		} else {
+			// Every strip may need up to one label per pixel
+			if (parent.length < width * height + 1)
+				parent = new int[width * height + 1];
+			rangeCount = stripCount;
+			pool.invoke(new StripTask(0, stripCount, ra0, ra1, width, 
+					height, minDiffThreshold));
+			for (int strip = 1; strip < stripCount; strip++)
+				mergeSeam(stripY(strip, stripCount, height), width);
+		}
+
+		return collectClusters(width, height, minClusterSize);
+	}
+
+	private static int stripY (int strip, int stripCount, int height) {
+		return (int) ((long) height * strip / stripCount);
+	}
+
+	/**
+	 * Labels strips [first, last) by splitting them in half until a single
+	 * strip remains.
+	 */
+	private class StripTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final int first, last, width, height, minDiffThreshold;
+		final RowAccess ra0, ra1;
+
+		StripTask (int first, int last, RowAccess ra0, RowAccess ra1, 
+				int width, int height, int minDiffThreshold) {
+			this.first = first;
+			this.last = last;
+			this.ra0 = ra0;
+			this.ra1 = ra1;
+			this.width = width;
+			this.height = height;
+			this.minDiffThreshold = minDiffThreshold;
+		}
+
+		protected void compute () {
+			if (last - first == 1) {
+				labelStrip(first, ra0, ra1, width, 
+						stripY(first, rangeCount, height), 
+						stripY(first + 1, rangeCount, height), 
+						minDiffThreshold);
+				return;
+			}
+
+			int mid = (first + last) / 2;
+			invokeAll(new StripTask(first, mid, ra0, ra1, width, height, 
+					minDiffThreshold),
+					new StripTask(mid, last, ra0, ra1, width, height, 
+							minDiffThreshold));
+		}
+	}
+
+	/**
+	 * First pass over rows [y0, y1). Labels come from a range starting at
+	 * the strip's first pixel index, so they increase in raster order 
+	 * across the whole image.
+	 */
+	private void labelStrip (int strip, RowAccess ra0, RowAccess ra1, 
+			int width, int y0, int y1, int minDiffThreshold) {
+		if (rowBuffers0[strip].length < width) {
+			rowBuffers0[strip] = new int[width];
+			rowBuffers1[strip] = new int[width];
+			hotMasks[strip] = new long[(width + 63) >> 6];
+		}
+		int[] row0 = rowBuffers0[strip], row1 = rowBuffers1[strip];
+		long[] mask = hotMasks[strip];
+		int words = (width + 63) >> 6;
+
+		int nextLabel = y0 * width + 1;
+		rangeStart[strip] = nextLabel;
+
+		for (int y = y0; y < y1; y++) {
+			ra0.getRow(0, y, width, row0);
+			ra1.getRow(0, y, width, row1);
+			kernel.hotMask(row0, 0, row1, 0, width, minDiffThreshold, mask);
+
+			// Only the hot pixels are visited, in order, the rest of the
+			// row having been cleared
+			int base = y * width;
+			Arrays.fill(labels, base, base + width, 0);
+			for (int w = 0; w < words; w++) {
+				for (long word = mask[w]; word != 0; word &= word - 1) {
+					int x = w << 6 | Long.numberOfTrailingZeros(word);
+					int label = neighborLabel(base + x, x, y > y0, width);
+					if (label == 0) {
+						if (nextLabel == parent.length)
+							parent = grow(parent);
+						label = nextLabel++;
+						parent[label] = label;
+					}
+					labels[base + x] = label;
+				}
+			}
+		}
+
+		rangeEnd[strip] = nextLabel;
+	}
+
+	/**
+	 * Chooses the label for a hot pixel from its already visited 
+	 * neighbors, merging their components if they differ. Returns 0 if 
+	 * no neighbor is labeled.
+	 */
+	private int neighborLabel (int idx, int x, boolean hasRowAbove, int width) {
+		int label = 0;
+
+		if (x > 0)
+			label = labels[idx - 1];
+
+		if (hasRowAbove) {
+			label = join(label, labels[idx - width]);
+
+			if (connectivity == EIGHT_CONNECTED) {
+				if (x > 0)
+					label = join(label, labels[idx - width - 1]);
+				if (x < width - 1)
+					label = join(label, labels[idx - width + 1]);
+			}
+		}
+
+		return label;
+	}
+
+	/**
+	 * Joins the components of the first row of a strip with those of 
+	 * the last row of the strip above.
+	 */
+	private void mergeSeam (int y, int width) {
+		int base = y * width;
+		for (int x = 0; x < width; x++) {
+			int idx = base + x;
+			int label = labels[idx];
+			if (label == 0)
+				continue;
+
+			label = join(label, labels[idx - width]);
+			if (connectivity == EIGHT_CONNECTED) {
+				if (x > 0)
+					label = join(label, labels[idx - width - 1]);
+				if (x < width - 1)
+					join(label, labels[idx - width + 1]);
+			}
+		}
+	}
+
+	/**
+	 * Returns a label representing both a and b, where 0 means none
+	 */
+	private int join (int a, int b) {
+		if (b == 0 || a == b)
+			return a == 0 ? b : a;
+		if (a == 0)
+			return b;
+		return union(a, b);
+	}
+
+	private int find (int label) {
+		while (parent[label] != label) {
+			parent[label] = parent[parent[label]];
+			label = parent[label];
+		}
+		return label;
+	}
+
+	/**
+	 * Merges two components. The smaller label always becomes the root,
+	 * so every label's parent is never larger than the label itself.
+	 */
+	private int union (int a, int b) {
+		int rootA = find(a), rootB = find(b);
+
+		if (rootA < rootB) {
+			parent[rootB] = rootA;
+			return rootA;
+		}
+		parent[rootA] = rootB;
+		return rootB;
+	}
+
+	/**
+	 * Second pass: resolves every pixel to its root label and builds the
+	 * clusters that are large enough. Clusters are returned in the order
+	 * their first pixel appears in a raster scan.
+	 */
+	private ArrayList<Cluster> collectClusters (int width, int height, 
+			int minClusterSize) {
+		if (counts.length < parent.length) {
+			counts = new int[parent.length];
+			clusterIndex = new int[parent.length];
+		}
+
+		// Parents always point to smaller labels, so one ascending sweep
+		// flattens the forest.
+		counts[0] = 0;
+		for (int range = 0; range < rangeCount; range++) {
+			for (int label = rangeStart[range]; label < rangeEnd[range]; label++) {
+				parent[label] = parent[parent[label]];
+				counts[label] = 0;
+			}
+		}
+
+		int pixels = width * height;
+		for (int i = 0; i < pixels; i++) {
+			int root = parent[labels[i]];
+			labels[i] = root;
+			counts[root]++;
+		}
+
+		ArrayList<Cluster> out = new ArrayList<Cluster>();
+		for (int range = 0; range < rangeCount; range++) {
+			for (int label = rangeStart[range]; label < rangeEnd[range]; label++) {
+				if (parent[label] == label && counts[label] > minClusterSize) {
+					clusterIndex[label] = out.size();
+					out.add(new Cluster());
+				} else {
+					clusterIndex[label] = -1;
+				}
+			}
+		}
+
+		if (out.isEmpty())
+			return out;
+
+		for (int y = 0; y < height; y++) {
+			int base = y * width;
+			int x = 0;
+			while (x < width) {
+				int root = labels[base + x];
+				int start = x;
+				while (x < width && labels[base + x] == root)
+					x++;
+				if (root != 0 && clusterIndex[root] >= 0)
+					out.get(clusterIndex[root]).addRun(y, start, x);
+			}
+		}
+
+		return out;
+	}
+
+	private static int[] grow (int[] array) {
+		int[] bigger = new int[array.length * 2];
+		System.arraycopy(array, 0, bigger, 0, array.length);
+		return bigger;
+	}
+}
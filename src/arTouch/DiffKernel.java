@@ -0,0 +1,135 @@
+package arTouch;
+
+/**
+ * The per-pixel RGB difference, |R0-R1| + |G0-G1| + |B0-B1|, applied to
+ * whole rows of packed ARGB pixels. A pair of pixels only counts if both
+ * are valid. This is the inner loop of shift matching, image alignment
+ * and the hot pixel test of cluster labeling, so they share it: summed
+ * over a row, or compared to a threshold into a bitmask.
+ *
+ * Two implementations are available. BranchFree masks out invalid pairs
+ * arithmetically and uses no branches in its loops, which lets the JIT
+ * compile them to SIMD instructions where the CPU has them. Scalar is
+ * the plain per-pixel version, kept as a reference and fallback. The
+ * kernel is chosen once, at startup, from the arTouch.diffKernel system
+ * property ("scalar" or "branch-free", the default).
+ */
+public abstract class DiffKernel {
+	private static final DiffKernel instance =
+		"scalar".equals(System.getProperty("arTouch.diffKernel")) ?
+				new Scalar() : new BranchFree();
+
+	public static DiffKernel get () {
+		return instance;
+	}
+
+	/**
+	 * Sums the differences of the valid pairs, with the given offsets
+	 * added to b's channels first (without clamping).
+	 */
+	public abstract long sumDiff (int[] a, int aOffset, int[] b, int bOffset,
+			int length, int offsetR, int offsetG, int offsetB);
+
+	public long sumDiff (int[] a, int aOffset, int[] b, int bOffset,
+			int length) {
+		return sumDiff(a, aOffset, b, bOffset, length, 0, 0, 0);
+	}
+
+	/**
+	 * Counts the pairs in which both pixels are valid
+	 */
+	public abstract int countValid (int[] a, int aOffset, int[] b, int bOffset,
+			int length);
+
+	/**
+	 * Sets bit i of the mask (bit i & 63 of mask[i >> 6]) for each pair i
+	 * whose pixels are both valid and differ by at least threshold, and
+	 * clears it for the others. The mask needs (length + 63) / 64 words;
+	 * bits past length in its last word are cleared.
+	 * 
+	 * Both kernels share this one. Gathering bits into a word is a
+	 * dependency chain the JIT does not vectorize, and testing each pair
+	 * with branches, which hot pixels rarely take, measured faster than
+	 * building the words arithmetically.
+	 */
+	public void hotMask (int[] a, int aOffset, int[] b, int bOffset,
+			int length, int threshold, long[] mask) {
+		for (int start = 0; start < length; start += 64) {
+			int end = Math.min(start + 64, length);
+			long word = 0;
+			for (int i = start; i < end; i++) {
+				int argb0 = a[aOffset + i], argb1 = b[bOffset + i];
+				if (PackedPixels.isValid(argb0) && PackedPixels.isValid(argb1) &&
+						PackedPixels.diff(argb0, argb1) >= threshold)
+					word |= 1L << i;
+			}
+			mask[start >> 6] = word;
+		}
+	}
+
+	public static class Scalar extends DiffKernel {
+		public long sumDiff (int[] a, int aOffset, int[] b, int bOffset,
+				int length, int offsetR, int offsetG, int offsetB) {
+			long sum = 0;
+			for (int i = 0; i < length; i++) {
+				int argb0 = a[aOffset + i], argb1 = b[bOffset + i];
+				if (!PackedPixels.isValid(argb0) || !PackedPixels.isValid(argb1))
+					continue;
+				sum += Math.abs(PackedPixels.red(argb0) -
+						(PackedPixels.red(argb1) + offsetR)) +
+					Math.abs(PackedPixels.green(argb0) -
+							(PackedPixels.green(argb1) + offsetG)) +
+					Math.abs(PackedPixels.blue(argb0) -
+							(PackedPixels.blue(argb1) + offsetB));
+			}
+			return sum;
+		}
+
+		public int countValid (int[] a, int aOffset, int[] b, int bOffset,
+				int length) {
+			int count = 0;
+			for (int i = 0; i < length; i++)
+				if (PackedPixels.isValid(a[aOffset + i]) &&
+						PackedPixels.isValid(b[bOffset + i]))
+					count++;
+			return count;
+		}
+	}
+
+	/**
+	 * Validity is turned into a mask rather than tested: alpha + 255
+	 * shifted down by 8 is 1 for any nonzero alpha and 0 otherwise.
+	 */
+	public static class BranchFree extends DiffKernel {
+		public long sumDiff (int[] a, int aOffset, int[] b, int bOffset,
+				int length, int offsetR, int offsetG, int offsetB) {
+			// An int holds the sum of any row up to 2.8 million pixels
+			int sum = 0;
+			for (int i = 0; i < length; i++) {
+				int argb0 = a[aOffset + i], argb1 = b[bOffset + i];
+				int d = Math.abs(((argb0 >> 16) & 0xff) -
+						(((argb1 >> 16) & 0xff) + offsetR)) +
+					Math.abs(((argb0 >> 8) & 0xff) -
+							(((argb1 >> 8) & 0xff) + offsetG)) +
+					Math.abs((argb0 & 0xff) - ((argb1 & 0xff) + offsetB));
+				sum += d & -(bothValid(argb0, argb1));
+			}
+			return sum;
+		}
+
+		public int countValid (int[] a, int aOffset, int[] b, int bOffset,
+				int length) {
+			int count = 0;
+			for (int i = 0; i < length; i++)
+				count += bothValid(a[aOffset + i], b[bOffset + i]);
+			return count;
+		}
+
+		/**
+		 * 1 if both pixels are valid, 0 otherwise
+		 */
+		private static int bothValid (int argb0, int argb1) {
+			return (((argb0 >>> 24) + 0xff) >>> 8) & (((argb1 >>> 24) + 0xff) >>> 8);
+		}
+	}
+}
@@ -2,31 +2,34 @@ package arTouch;
 
 import java.awt.BorderLayout;
 import java.awt.Dimension;
-import java.awt.Image;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
 
-import javax.swing.ImageIcon;
 import javax.swing.JFrame;
-import javax.swing.JLabel;
 import javax.swing.JPanel;
 
-import au.edu.jcu.v4l4j.FrameGrabber;
-import au.edu.jcu.v4l4j.VideoDevice;
-import au.edu.jcu.v4l4j.exceptions.V4L4JException;
+import arTouch.frameSources.RecordingFrameSource;
+import arTouch.frameSources.ReplayFrameSource;
+import arTouch.frameSources.V4L4JFrameSource;
+import arTouch.pipeline.FramePair;
+import arTouch.pipeline.RingBuffer.DropPolicy;
+import arTouch.pipeline.StereoPipeline;
+import arTouch.previews.ImagePanel;
+import arTouch.previews.SwingPreview;
+import arTouch.touch.TouchFrame;
+import arTouch.touch.TouchListener;
+import arTouch.touch.TouchPublisher.Backpressure;
 
-public class DualViewer extends WindowAdapter implements Runnable {
-	private VideoDevice vd0, vd1;
-	private static JLabel l0, l1, l2, l3;
+public class DualViewer extends WindowAdapter implements StereoPipeline.Presenter {
+	private ImagePanel l0, l1;
+	private SwingPreview preview;
 	private JFrame f;
-	private FrameGrabber fg0, fg1;
-	private Thread captureThread;
-	private boolean stop = false;
-	private boolean grabPrimary = true;
-	private Image img0, img1;
-	private StereoVisionProcessor stereoProc = new StereoVisionProcessor();
+	private FrameSource source0, source1;
+	private StereoPipeline pipeline;
+	private StereoVisionProcessor stereoProc;
 
 	public static final int w=640, h=480, std=0, channel = 0, qty = 60;
 
@@ -34,40 +37,69 @@ public class DualViewer extends WindowAdapter implements Runnable {
 	 * Creates the Dual Viewer with using the identifier for each device.
 	 */
 	public DualViewer (String device0Identifier, String device1Identifier) {
+		this(new V4L4JFrameSource(device0Identifier, w, h, channel, std, qty),
+				new V4L4JFrameSource(device1Identifier, w, h, channel, std, qty),
+				new StereoVisionProcessor(), false,
+				StereoPipeline.DEFAULT_CAPACITY, DropPolicy.DROP_OLDEST, 0,
+				StereoPipeline.DEFAULT_PAIR_TOLERANCE_MILLIS,
+				SwingPreview.DEFAULT_MAX_FPS);
+	}
+
+	/**
+	 * Creates the Dual Viewer reading from the given frame sources and
+	 * handing image pairs to stereoProc. In headless mode no window is
+	 * created and nothing is displayed. Stages of the pipeline are
+	 * connected by buffers of the given capacity and drop policy; stage
+	 * statistics are printed every reportInterval pairs (0 for never).
+	 * Frames of the two cameras are paired if taken within pairTolerance
+	 * milliseconds of each other. When not headless, stereoProc's preview
+	 * is shown below the camera images, at up to previewFps frames a
+	 * second.
+	 */
+	public DualViewer (FrameSource source0, FrameSource source1, 
+			StereoVisionProcessor stereoProc, boolean headless, 
+			int queueCapacity, DropPolicy policy, int reportInterval,
+			long pairTolerance, double previewFps) {
+		this.source0 = source0;
+		this.source1 = source1;
+		this.stereoProc = stereoProc;
+
 		try {
-			vd0 = new VideoDevice(device0Identifier);
-			fg0 = initFrameGrabber(vd0);
-			vd1 = new VideoDevice(device1Identifier);
-			fg1 = initFrameGrabber(vd1);
-		} catch (Exception e) {
+			source0.start();
+			source1.start();
+		} catch (IOException e) {
 			e.printStackTrace();
 			System.exit(1);
 		}
 
-		initGUI();
-		captureThread = new Thread(this, "Capture Thread");
-		captureThread.start();
+		if (!headless)
+			initGUI(previewFps);
+		pipeline = new StereoPipeline(source0, source1, stereoProc, 
+				headless ? null : this, queueCapacity, policy);
+		pipeline.setReportInterval(reportInterval);
+		pipeline.setPairTolerance(pairTolerance);
+		pipeline.start();
 	}
 
 	/** 
 	 * Creates the graphical interface components and initialises them
 	 */
-	private void initGUI(){
+	private void initGUI(double previewFps){
 		f = new JFrame("Dual Viewer");
 		JPanel panel = new JPanel(new BorderLayout());
 		JPanel southPanel = new JPanel(new BorderLayout());
-		l0 = new JLabel();
-		l0.setPreferredSize(new Dimension(fg0.getWidth(), fg0.getHeight()));
-		l1 = new JLabel();
-		l1.setPreferredSize(new Dimension(fg1.getWidth(), fg1.getHeight()));
+		l0 = new ImagePanel();
+		l0.setPreferredSize(new Dimension(source0.getWidth(), source0.getHeight()));
+		l1 = new ImagePanel();
+		l1.setPreferredSize(new Dimension(source1.getWidth(), source1.getHeight()));
 		
-		l2 = new JLabel();
-		l2.setPreferredSize(new Dimension(fg1.getWidth(), fg1.getHeight()));
-		l3 = new JLabel();
-		l3.setPreferredSize(new Dimension(fg1.getWidth(), fg1.getHeight()));
+		preview = new SwingPreview(source1.getWidth(), source1.getHeight(), 
+				previewFps);
+		stereoProc.setPreview(preview);
+		preview.start();
 
-		southPanel.add(l2, BorderLayout.WEST);
-		southPanel.add(l3, BorderLayout.EAST);
+		southPanel.add(preview.getComponent(Preview.LEFT), BorderLayout.WEST);
+		southPanel.add(preview.getComponent(Preview.RIGHT), BorderLayout.EAST);
 		
 		panel.add(l0, BorderLayout.WEST);
 		panel.add(l1, BorderLayout.EAST);
@@ -81,83 +113,174 @@ public class DualViewer extends WindowAdapter implements Runnable {
 	}
 
 	/**
-	 * Initializes the FrameGrabber object
+	 * Presentation stage: shows the raw camera images. They are copied,
+	 * so the pipeline may reuse them as soon as this returns.
 	 */
-	private FrameGrabber initFrameGrabber(VideoDevice vd) throws V4L4JException{
-		FrameGrabber fg = vd.getJPEGFrameGrabber(w, h, channel, std, qty);
-		fg.startCapture();
-		System.out.println("Starting capture at "+fg.getWidth()+"x"+fg.getHeight());    
-		return fg;
+	public void present (FramePair pair) {
+		l0.showImage(pair.image0);
+		l1.showImage(pair.image1);
 	}
 
 	/**
-	 * Implements the capture thread: get a frame from the FrameGrabber, and display it
+	 * Stops the pipeline and releases both frame sources
 	 */
-	public void run(){
-		ByteBuffer bb;
-		byte[] b;
-		try {                   
-			while(!stop){
-				grabPrimary = !grabPrimary;
-				if (grabPrimary) {
-					bb = fg0.getFrame();
-					b = new byte[bb.limit()];
-					bb.get(b);
-					l0.setIcon(new ImageIcon(b));
-					img0 = convertToImage(b);
-				} else {
-					bb = fg1.getFrame();
-					b = new byte[bb.limit()];
-					bb.get(b);
-					l1.setIcon(new ImageIcon(b));
-					img1 = convertToImage(b);
-					if (img0 != null && img1 != null)
-						stereoProc.processImagePair(img0, img1);
-				}
-			}
-		} catch (V4L4JException e) {
-			e.printStackTrace();
-			System.out.println("Failed to capture image");
-		}
+	public void stop () {
+		pipeline.stop();
+		stereoProc.getTouchPublisher().shutdown();
+		if (preview != null)
+			preview.stop();
+
+		source0.stop();
+		source1.stop();
 	}
 
-	private Image convertToImage (byte[] b) {
-		ImageIcon testicon = new ImageIcon(b);
-		return testicon.getImage();
+	/**
+	 * Blocks until the pipeline has drained, e.g. at the end of a
+	 * replayed session.
+	 */
+	public void awaitCompletion () throws InterruptedException {
+		pipeline.join();
+	}
+
+	public StereoPipeline getPipeline () {
+		return pipeline;
 	}
 
 	/**
 	 * Catch window closing event so we can free up resources before exiting
 	 */
 	public void windowClosing(WindowEvent e) {
-		if(captureThread.isAlive()){
-			stop = true;
-			try {
-				captureThread.join();
-			} catch (InterruptedException e1) {}
-		}
-
-		fg0.stopCapture();
-		vd0.releaseFrameGrabber();
-		fg1.stopCapture();
-		vd1.releaseFrameGrabber();
-
+		stop();
 		f.dispose();            
 	}
 	
-	public static void displayImageLeft (Image img) {
-		l2.setIcon(new ImageIcon(img));
-		l2.repaint();
-	}
-	
-	public static void displayImageRight (Image img) {
-		l3.setIcon(new ImageIcon(img));
-		l3.repaint();
-	}
-
-	public static void main(String[] args) throws V4L4JException, IOException {
+	/**
+	 * Usage: DualViewer [--headless] [--replay dir [--fast]] [--record dir]
+	 * 		[--queue capacity] [--policy block|drop-oldest|drop-newest]
+	 * 		[--stats interval] [--strips n] [--learning-rate r]
+	 * 		[--calibration-cache dir] [--track] [--level n]
+	 * 		[--preview-fps fps] [--metrics seconds] [--pair-tolerance ms]
+	 * 		[--print-touches] [dev0 dev1]
+	 * 
+	 * Processing metrics are always published over JMX; --metrics also
+	 * prints a summary of them every given number of seconds.
+	 * --print-touches prints the touch events of each frame.
+	 */
+	public static void main(String[] args) throws IOException, 
+	InterruptedException {
 		String dev0 = "/dev/video0";
 		String dev1 = "/dev/video1";
-		new DualViewer(dev0, dev1);
+		File replayDir = null, recordDir = null, cacheDir = null;
+		boolean headless = false, realTime = true, tracking = false;
+		boolean printTouches = false;
+		int queueCapacity = StereoPipeline.DEFAULT_CAPACITY, reportInterval = 0;
+		int strips = 1, level = 0, metricsPeriod = 0;
+		long pairTolerance = StereoPipeline.DEFAULT_PAIR_TOLERANCE_MILLIS;
+		double learningRate = BackgroundModel.DEFAULT_LEARNING_RATE;
+		double previewFps = SwingPreview.DEFAULT_MAX_FPS;
+		DropPolicy policy = null;
+
+		int devicesSeen = 0;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--headless"))
+				headless = true;
+			else if (args[i].equals("--fast"))
+				realTime = false;
+			else if (args[i].equals("--replay"))
+				replayDir = new File(args[++i]);
+			else if (args[i].equals("--record"))
+				recordDir = new File(args[++i]);
+			else if (args[i].equals("--queue"))
+				queueCapacity = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--policy"))
+				policy = DropPolicy.valueOf(
+						args[++i].toUpperCase().replace('-', '_'));
+			else if (args[i].equals("--stats"))
+				reportInterval = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--strips"))
+				strips = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--learning-rate"))
+				learningRate = Double.parseDouble(args[++i]);
+			else if (args[i].equals("--calibration-cache"))
+				cacheDir = new File(args[++i]);
+			else if (args[i].equals("--track"))
+				tracking = true;
+			else if (args[i].equals("--level"))
+				level = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--preview-fps"))
+				previewFps = Double.parseDouble(args[++i]);
+			else if (args[i].equals("--metrics"))
+				metricsPeriod = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--pair-tolerance"))
+				pairTolerance = Long.parseLong(args[++i]);
+			else if (args[i].equals("--print-touches"))
+				printTouches = true;
+			else if (devicesSeen++ == 0)
+				dev0 = args[i];
+			else
+				dev1 = args[i];
+		}
+
+		FrameSource source0, source1;
+		if (replayDir != null) {
+			ReplayFrameSource[] session = 
+				ReplayFrameSource.openSession(replayDir, realTime);
+			source0 = session[0];
+			source1 = session[1];
+		} else {
+			source0 = new V4L4JFrameSource(dev0, w, h, channel, std, qty);
+			source1 = new V4L4JFrameSource(dev1, w, h, channel, std, qty);
+		}
+
+		if (recordDir != null) {
+			source0 = new RecordingFrameSource(source0,
+					new File(recordDir, "cam0"));
+			source1 = new RecordingFrameSource(source1,
+					new File(recordDir, "cam1"));
+		}
+
+		// A replay should process every recorded frame unless told otherwise,
+		// a live camera should never wait on a slow stage.
+		if (policy == null)
+			policy = replayDir != null ? DropPolicy.BLOCK
+					: DropPolicy.DROP_OLDEST;
+
+		StereoVisionProcessor stereoProc = new StereoVisionProcessor();
+		stereoProc.bgSubtractor.setLearningRate(learningRate, 
+				learningRate / 10);
+		if (strips > 1)
+			stereoProc.bgSubtractor.setParallelClustering(new ForkJoinPool(), 
+					strips);
+		stereoProc.bgSubtractor.setTracking(tracking);
+		stereoProc.bgSubtractor.setLevel(level);
+		if (cacheDir != null) {
+			String rigKey = replayDir != null ? 
+					"replay-" + replayDir.getCanonicalFile().getName() : 
+					dev0 + "+" + dev1;
+			stereoProc.cameraCalibrator.setCalibrationCache(
+					new CalibrationCache(cacheDir), rigKey);
+		}
+
+		if (printTouches)
+			stereoProc.getTouchPublisher().addListener(new TouchListener() {
+				public void touchFrame (TouchFrame frame) {
+					System.out.println(frame);
+				}
+			}, replayDir != null ? Backpressure.BLOCK : Backpressure.DROP);
+
+		stereoProc.getMetrics().registerMBeans();
+		if (metricsPeriod > 0)
+			stereoProc.getMetrics().startSummary(metricsPeriod);
+
+		DualViewer viewer = new DualViewer(source0, source1, stereoProc, 
+				headless, queueCapacity, policy, reportInterval, 
+				pairTolerance, previewFps);
+		if (headless) {
+			viewer.awaitCompletion();
+			viewer.stop();
+			viewer.getPipeline().printStats();
+			System.out.print(stereoProc.getMetrics().getSummary());
+			System.exit(0);
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,37 @@
+package arTouch;
+
+import java.io.IOException;
+
+/**
+ * A frame source supplies encoded images from a single camera. This
+ * lets the viewer run from live webcams or from a recorded session
+ * without caring which.
+ */
+public interface FrameSource {
+	/**
+	 * Prepares the source for capture. Must be called before getFrame.
+	 */
+	public void start () throws IOException;
+
+	/**
+	 * Returns the next encoded (JPEG) frame, blocking until one is 
+	 * available. Returns null once the source has no more frames.
+	 */
+	public byte[] getFrame () throws IOException;
+
+	/**
+	 * Returns when the frame last returned by getFrame was captured, in
+	 * milliseconds on the System.currentTimeMillis clock, so that frames
+	 * of different cameras can be paired by time.
+	 */
+	public long getFrameTimestamp ();
+
+	public int getWidth ();
+
+	public int getHeight ();
+
+	/**
+	 * Stops capture and releases any resources held by the source.
+	 */
+	public void stop ();
+}
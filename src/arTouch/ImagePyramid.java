@@ -0,0 +1,147 @@
+package arTouch;
+
+import arTouch.Clusterer.RowAccess;
+
+/**
+ * Half and quarter resolution copies of a packed ARGB image. Level 0 is
+ * the image itself and each level above halves both dimensions, every
+ * pixel the average of a 2x2 block of the level below. A block with any
+ * invalid pixel gives an invalid pixel. An odd last row or column is
+ * dropped.
+ *
+ * The level buffers are kept and reused from frame to frame.
+ */
+public class ImagePyramid {
+	public static final int MAX_LEVEL = 2;
+
+	private int[][] levels = new int[MAX_LEVEL + 1][];
+	private int[] widths = new int[MAX_LEVEL + 1];
+	private int[] heights = new int[MAX_LEVEL + 1];
+	private int[] row0 = new int[0], row1 = new int[0];
+	private int top = -1;
+
+	/**
+	 * Builds the levels up to top of a row-major image, which becomes
+	 * level 0 without being copied
+	 */
+	public void build (int[] image, int width, int height, int top) {
+		checkLevel(top);
+		setLevel(0, width, height);
+		levels[0] = image;
+		for (int level = 1; level <= top; level++)
+			reduce(level);
+		this.top = top;
+	}
+
+	/**
+	 * Builds the levels 1 to top of an image read through a RowAccess.
+	 * Level 0 is not kept, so only its dimensions are available.
+	 */
+	public void build (RowAccess source, int width, int height, int top) {
+		checkLevel(top);
+		setLevel(0, width, height);
+		levels[0] = null;
+		if (top == 0) {
+			this.top = 0;
+			return;
+		}
+
+		if (row0.length < width) {
+			row0 = new int[width];
+			row1 = new int[width];
+		}
+		setLevel(1, width / 2, height / 2);
+		int[] out = levels[1];
+		for (int y = 0, i = 0; y < heights[1]; y++) {
+			source.getRow(0, 2 * y, width, row0);
+			source.getRow(0, 2 * y + 1, width, row1);
+			for (int x = 0; x < widths[1]; x++, i++)
+				out[i] = average(row0[2 * x], row0[2 * x + 1],
+						row1[2 * x], row1[2 * x + 1]);
+		}
+		for (int level = 2; level <= top; level++)
+			reduce(level);
+		this.top = top;
+	}
+
+	private static void checkLevel (int level) {
+		if (level < 0 || level > MAX_LEVEL)
+			throw new IllegalArgumentException("Level must be in [0," +
+					MAX_LEVEL + "]");
+	}
+
+	private void setLevel (int level, int width, int height) {
+		widths[level] = width;
+		heights[level] = height;
+		if (level > 0 && (levels[level] == null ||
+				levels[level].length < width * height))
+			levels[level] = new int[width * height];
+	}
+
+	/**
+	 * Halves the level below into the given level
+	 */
+	private void reduce (int level) {
+		int inWidth = widths[level - 1];
+		setLevel(level, inWidth / 2, heights[level - 1] / 2);
+		int[] in = levels[level - 1], out = levels[level];
+
+		for (int y = 0, i = 0; y < heights[level]; y++) {
+			int p = 2 * y * inWidth;
+			for (int x = 0; x < widths[level]; x++, i++, p += 2)
+				out[i] = average(in[p], in[p + 1],
+						in[p + inWidth], in[p + inWidth + 1]);
+		}
+	}
+
+	private static int average (int a, int b, int c, int d) {
+		if (!PackedPixels.isValid(a) || !PackedPixels.isValid(b) ||
+				!PackedPixels.isValid(c) || !PackedPixels.isValid(d))
+			return PackedPixels.INVALID;
+		return PackedPixels.OPAQUE |
+			((PackedPixels.red(a) + PackedPixels.red(b) +
+					PackedPixels.red(c) + PackedPixels.red(d) + 2) >> 2) << 16 |
+			((PackedPixels.green(a) + PackedPixels.green(b) +
+					PackedPixels.green(c) + PackedPixels.green(d) + 2) >> 2) << 8 |
+			((PackedPixels.blue(a) + PackedPixels.blue(b) +
+					PackedPixels.blue(c) + PackedPixels.blue(d) + 2) >> 2);
+	}
+
+	/**
+	 * Returns the highest level built for the current image
+	 */
+	public int getTop () {
+		return top;
+	}
+
+	/**
+	 * Returns a level's pixels, row-major with getWidth(level) pixels per
+	 * row. The array may be longer than the level.
+	 */
+	public int[] getLevel (int level) {
+		if (level > top || levels[level] == null)
+			throw new IllegalStateException("Level " + level + " not built");
+		return levels[level];
+	}
+
+	public int getWidth (int level) {
+		return widths[level];
+	}
+
+	public int getHeight (int level) {
+		return heights[level];
+	}
+
+	/**
+	 * Row access to one level of a pyramid
+	 */
+	public static class LevelRowAccess implements RowAccess {
+		public ImagePyramid pyramid;
+		public int level;
+
+		public void getRow (int x, int y, int length, int[] argb) {
+			System.arraycopy(pyramid.getLevel(level),
+					y * pyramid.getWidth(level) + x, argb, 0, length);
+		}
+	}
+}
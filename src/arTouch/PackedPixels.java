@@ -0,0 +1,130 @@
+package arTouch;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Helpers for working with pixels packed as ARGB ints. Throughout the
+ * project an alpha of zero marks a pixel with no valid value (e.g. one
+ * that falls outside the overlap of the two cameras).
+ */
+public class PackedPixels {
+	public static final int OPAQUE = 0xff000000;
+	public static final int INVALID = 0;
+
+	/**
+	 * The last sample model found to be packed RGB. getBitMasks copies the
+	 * masks on every call, so this saves an allocation per row.
+	 */
+	private static volatile SampleModel knownPackedRGB;
+
+	/**
+	 * Per thread sample buffers for rasters that cannot be copied directly
+	 */
+	private static final ThreadLocal<int[]> scratch = new ThreadLocal<int[]>() {
+		protected int[] initialValue () {
+			return new int[0];
+		}
+	};
+
+	public static int red (int argb) {
+		return (argb >> 16) & 0xff;
+	}
+
+	public static int green (int argb) {
+		return (argb >> 8) & 0xff;
+	}
+
+	public static int blue (int argb) {
+		return argb & 0xff;
+	}
+
+	public static boolean isValid (int argb) {
+		return (argb & OPAQUE) != 0;
+	}
+
+	/**
+	 * Packs an opaque pixel, clamping each channel into 0..255
+	 */
+	public static int pack (int r, int g, int b) {
+		return OPAQUE | clamp(r) << 16 | clamp(g) << 8 | clamp(b);
+	}
+
+	private static int clamp (int c) {
+		return c < 0 ? 0 : (c > 255 ? 255 : c);
+	}
+
+	/**
+	 * The total RGB difference between two pixels
+	 */
+	public static int diff (int argb0, int argb1) {
+		return Math.abs(red(argb0) - red(argb1)) +
+		Math.abs(green(argb0) - green(argb1)) +
+		Math.abs(blue(argb0) - blue(argb1));
+	}
+
+	/**
+	 * Reads length pixels of row y starting at x into argb, beginning at 
+	 * index offset. Rasters backed by packed RGB ints are copied directly,
+	 * anything else goes through the generic sample interface. Safe to 
+	 * call from several threads at once.
+	 */
+	public static void readRow (Raster raster, int x, int y, int length,
+			int[] argb, int offset) {
+		SampleModel sm = raster.getSampleModel();
+		DataBuffer db = raster.getDataBuffer();
+
+		if (db instanceof DataBufferInt && isPackedRGB(sm)) {
+			SinglePixelPackedSampleModel sppsm = (SinglePixelPackedSampleModel) sm;
+			int[] data = ((DataBufferInt) db).getData();
+			int start = db.getOffset() + sppsm.getOffset(
+					x - raster.getSampleModelTranslateX(), 
+					y - raster.getSampleModelTranslateY());
+
+			for (int i = 0; i < length; i++)
+				argb[offset + i] = data[start + i] | OPAQUE;
+			return;
+		}
+
+		int bands = raster.getNumBands();
+		int[] samples = scratch.get();
+		if (samples.length < length * bands) {
+			samples = new int[length * bands];
+			scratch.set(samples);
+		}
+		raster.getPixels(x, y, length, 1, samples);
+		for (int i = 0, s = 0; i < length; i++, s += bands)
+			argb[offset + i] = pack(samples[s], samples[s + 1], samples[s + 2]);
+	}
+
+	private static boolean isPackedRGB (SampleModel sm) {
+		if (sm == knownPackedRGB)
+			return true;
+		if (!(sm instanceof SinglePixelPackedSampleModel))
+			return false;
+		int[] masks = ((SinglePixelPackedSampleModel) sm).getBitMasks();
+		if (masks.length >= 3 && masks[0] == 0xff0000 && 
+				masks[1] == 0xff00 && masks[2] == 0xff) {
+			knownPackedRGB = sm;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Reads a whole raster into a row-major packed array
+	 */
+	public static int[] readRaster (Raster raster, int[] argb) {
+		int width = raster.getWidth(), height = raster.getHeight();
+		if (argb == null || argb.length != width * height)
+			argb = new int[width * height];
+
+		for (int y = 0; y < height; y++)
+			readRow(raster, raster.getMinX(), raster.getMinY() + y, width,
+					argb, y * width);
+		return argb;
+	}
+}
@@ -0,0 +1,224 @@
+package arTouch;
+
+import java.util.Arrays;
+
+/**
+ * Finds the translation between two images by phase correlation. Both 
+ * images are transformed with an FFT, their normalized cross-power 
+ * spectrum is transformed back, and the location of the resulting peak
+ * is the shift. This finds the global best shift in O(N log N) rather
+ * than by searching.
+ */
+public class PhaseCorrelator {
+	private int width, height, fftW, fftH;
+	private int downsample = 1, sampledW, sampledH;
+	private double[] re0, im0, re1, im1, window;
+	private double[] colRe, colIm;
+
+	/**
+	 * The shift found by the last call, refined to sub-pixel precision,
+	 * and the height of the correlation peak (1.0 for a perfect match).
+	 */
+	public double shiftX, shiftY, peak;
+
+	/**
+	 * Correlates images reduced by the given factor in each direction, 
+	 * which is roughly factor squared times faster. Shifts are still 
+	 * returned in full resolution pixels, at the coarser precision.
+	 */
+	public void setDownsample (int factor) {
+		if (factor < 1)
+			throw new IllegalArgumentException("Factor must be positive");
+		downsample = factor;
+		re0 = null;
+	}
+
+	/**
+	 * Returns {dx, dy} such that image1(x + dx, y + dy) best matches
+	 * image0(x, y). Images are row-major packed ARGB; invalid pixels are
+	 * treated as black.
+	 */
+	public int[] findShift (int[] image0, int[] image1, int width, int height) {
+		prepare(width, height);
+
+		load(image0, re0, im0);
+		load(image1, re1, im1);
+		transform2D(re0, im0, false);
+		transform2D(re1, im1, false);
+
+		// Normalized cross-power spectrum of image1 against image0
+		for (int i = 0; i < re0.length; i++) {
+			double re = re1[i] * re0[i] + im1[i] * im0[i];
+			double im = im1[i] * re0[i] - re1[i] * im0[i];
+			double mag = Math.sqrt(re * re + im * im);
+			if (mag < 1e-12) {
+				re0[i] = 0;
+				im0[i] = 0;
+			} else {
+				re0[i] = re / mag;
+				im0[i] = im / mag;
+			}
+		}
+		transform2D(re0, im0, true);
+
+		int best = 0;
+		for (int i = 1; i < re0.length; i++)
+			if (re0[i] > re0[best])
+				best = i;
+
+		int px = best % fftW, py = best / fftW;
+		peak = re0[best];
+		shiftX = downsample * (wrap(px, fftW) + interpolate(
+				re0[py * fftW + (px + fftW - 1) % fftW], re0[best],
+				re0[py * fftW + (px + 1) % fftW]));
+		shiftY = downsample * (wrap(py, fftH) + interpolate(
+				re0[((py + fftH - 1) % fftH) * fftW + px], re0[best],
+				re0[((py + 1) % fftH) * fftW + px]));
+
+		return new int[] { (int) Math.round(shiftX), (int) Math.round(shiftY) };
+	}
+
+	private static int wrap (int p, int size) {
+		return p > size / 2 ? p - size : p;
+	}
+
+	/**
+	 * Vertex offset (-0.5 to 0.5) of the parabola through three samples
+	 * around a peak
+	 */
+	private static double interpolate (double left, double center, double right) {
+		double denom = left - 2 * center + right;
+		if (denom == 0)
+			return 0;
+		return Math.max(-0.5, Math.min(0.5, 0.5 * (left - right) / denom));
+	}
+
+	private void prepare (int width, int height) {
+		if (re0 != null && width == this.width && height == this.height)
+			return;
+
+		this.width = width;
+		this.height = height;
+		sampledW = width / downsample;
+		sampledH = height / downsample;
+		fftW = Integer.highestOneBit(sampledW - 1) << 1;
+		fftH = Integer.highestOneBit(sampledH - 1) << 1;
+
+		re0 = new double[fftW * fftH];
+		im0 = new double[fftW * fftH];
+		re1 = new double[fftW * fftH];
+		im1 = new double[fftW * fftH];
+		colRe = new double[fftH];
+		colIm = new double[fftH];
+
+		// A Hann window keeps the image borders from dominating the peak
+		window = new double[sampledW * sampledH];
+		for (int y = 0; y < sampledH; y++) {
+			double wy = 0.5 - 0.5 * Math.cos(2 * Math.PI * y / (sampledH - 1));
+			for (int x = 0; x < sampledW; x++) {
+				double wx = 0.5 - 0.5 * Math.cos(2 * Math.PI * x / (sampledW - 1));
+				window[y * sampledW + x] = wx * wy;
+			}
+		}
+	}
+
+	/**
+	 * Converts an image to windowed, downsampled luminance, zero padded 
+	 * to FFT size
+	 */
+	private void load (int[] image, double[] re, double[] im) {
+		Arrays.fill(re, 0);
+		Arrays.fill(im, 0);
+
+		double sum = 0;
+		for (int y = 0; y < sampledH; y++) {
+			for (int x = 0; x < sampledW; x++) {
+				double v = 0;
+				for (int dy = 0; dy < downsample; dy++) {
+					int row = (y * downsample + dy) * width + x * downsample;
+					for (int dx = 0; dx < downsample; dx++)
+						v += luma(image[row + dx]);
+				}
+				re[y * fftW + x] = v;
+				sum += v;
+			}
+		}
+		double mean = sum / (sampledW * sampledH);
+
+		for (int y = 0; y < sampledH; y++)
+			for (int x = 0; x < sampledW; x++)
+				re[y * fftW + x] = (re[y * fftW + x] - mean) * 
+					window[y * sampledW + x];
+	}
+
+	private static double luma (int argb) {
+		if (!PackedPixels.isValid(argb))
+			return 0;
+		return 0.299 * PackedPixels.red(argb) + 0.587 * PackedPixels.green(argb)
+			+ 0.114 * PackedPixels.blue(argb);
+	}
+
+	private void transform2D (double[] re, double[] im, boolean inverse) {
+		for (int y = 0; y < fftH; y++)
+			transform(re, im, y * fftW, fftW, inverse);
+
+		for (int x = 0; x < fftW; x++) {
+			for (int y = 0; y < fftH; y++) {
+				colRe[y] = re[y * fftW + x];
+				colIm[y] = im[y * fftW + x];
+			}
+			transform(colRe, colIm, 0, fftH, inverse);
+			for (int y = 0; y < fftH; y++) {
+				re[y * fftW + x] = colRe[y];
+				im[y * fftW + x] = colIm[y];
+			}
+		}
+	}
+
+	/**
+	 * In place iterative radix-2 FFT of n (a power of two) complex values
+	 * starting at offset. The inverse transform is scaled by 1/n.
+	 */
+	static void transform (double[] re, double[] im, int offset, int n,
+			boolean inverse) {
+		for (int i = 1, j = 0; i < n; i++) {
+			int bit = n >> 1;
+			for (; (j & bit) != 0; bit >>= 1)
+				j ^= bit;
+			j ^= bit;
+			if (i < j) {
+				int a = offset + i, b = offset + j;
+				double t = re[a]; re[a] = re[b]; re[b] = t;
+				t = im[a]; im[a] = im[b]; im[b] = t;
+			}
+		}
+
+		for (int len = 2; len <= n; len <<= 1) {
+			double angle = 2 * Math.PI / len * (inverse ? 1 : -1);
+			double wRe = Math.cos(angle), wIm = Math.sin(angle);
+			for (int i = 0; i < n; i += len) {
+				double curRe = 1, curIm = 0;
+				for (int j = 0; j < len / 2; j++) {
+					int a = offset + i + j;
+					int b = offset + i + j + len / 2;
+					double vRe = re[b] * curRe - im[b] * curIm;
+					double vIm = re[b] * curIm + im[b] * curRe;
+					re[b] = re[a] - vRe;
+					im[b] = im[a] - vIm;
+					re[a] += vRe;
+					im[a] += vIm;
+					double nextRe = curRe * wRe - curIm * wIm;
+					curIm = curRe * wIm + curIm * wRe;
+					curRe = nextRe;
+				}
+			}
+		}
+
+		if (inverse) {
+			for (int i = 0; i < n; i++) {
+				re[offset + i] /= n;
+				im[offset + i] /= n;
+			}
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package arTouch;
+
+/**
+ * One 16 bit value per pixel, stored row-major in a single flat array so
+ * that the usual y outer, x inner scans walk memory in order. Values are
+ * read back either signed (-32768..32767) or unsigned (0..65535); the
+ * owner of a plane decides which one it holds.
+ */
+public class PixelPlane {
+	public final int width, height;
+	private final short[] values;
+
+	public PixelPlane (int width, int height) {
+		this.width = width;
+		this.height = height;
+		values = new short[width * height];
+	}
+
+	/**
+	 * The index of pixel x, y, for the index based accessors
+	 */
+	public int index (int x, int y) {
+		return y * width + x;
+	}
+
+	public int get (int x, int y) {
+		return values[y * width + x];
+	}
+
+	public int get (int index) {
+		return values[index];
+	}
+
+	public int getUnsigned (int index) {
+		return values[index] & 0xffff;
+	}
+
+	/**
+	 * Stores value, keeping only its low 16 bits
+	 */
+	public void set (int x, int y, int value) {
+		values[y * width + x] = (short) value;
+	}
+
+	public void set (int index, int value) {
+		values[index] = (short) value;
+	}
+}
@@ -0,0 +1,34 @@
+package arTouch;
+
+import java.awt.image.Raster;
+import java.util.List;
+
+import arTouch.Clusterer.Cluster;
+
+/**
+ * Somewhere to show what processing is doing, e.g. the clusters found in
+ * each frame. Processing only hands frames over; drawing them is up to
+ * the preview, which may drop frames to stay under its frame rate cap,
+ * or draw nothing at all when there is no display.
+ */
+public interface Preview {
+	public static final int LEFT = 0, RIGHT = 1;
+
+	/**
+	 * Returns whether a frame offered to the given side right now would
+	 * be shown. Callers that have to build a frame first should check, so
+	 * that no work is done for frames that would be dropped.
+	 */
+	public boolean wantsFrame (int side);
+
+	/**
+	 * Shows base with the pixels of the clusters painted over it. Base
+	 * is copied before returning; the clusters must not change afterwards.
+	 */
+	public void showClusters (int side, Raster base, List<Cluster> clusters);
+
+	/**
+	 * Shows a row-major packed image, copied before returning
+	 */
+	public void showImage (int side, int[] argb, int width, int height);
+}
@@ -12,8 +12,16 @@ import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.WritableRaster;
 import java.util.ArrayList;
 
+import arTouch.BGSubtractor.ForegroundPair;
 import arTouch.Clusterer.Cluster;
+import arTouch.metrics.Counter;
+import arTouch.metrics.LatencyHistogram;
+import arTouch.metrics.Metrics;
+import arTouch.previews.HeadlessPreview;
 import arTouch.rangeFinders.ClusterMatcher;
+import arTouch.touch.TouchEvent;
+import arTouch.touch.TouchFrame;
+import arTouch.touch.TouchPublisher;
 
 public class StereoVisionProcessor {
 	BufferedImage image0, image1;
@@ -22,26 +30,110 @@ public class StereoVisionProcessor {
 	CameraCalibrator cameraCalibrator = new CameraCalibrator();
 	RangeFinder rangeFinder = new ClusterMatcher(cameraCalibrator);
 	BGSubtractor bgSubtractor = new BGSubtractor();
+	Preview preview = new HeadlessPreview();
+
+	Metrics metrics = new Metrics();
+	LatencyHistogram calibrationLatency = metrics.getStage("calibration");
+	LatencyHistogram displayLatency = metrics.getStage("display");
+	LatencyHistogram matchingLatency = metrics.getStage("matching");
+	Counter clusterCount = metrics.getCounter("clusters");
+	Counter hotPixelCount = metrics.getCounter("hotPixels");
+	Counter touchCount = metrics.getCounter("touches");
+
+	TouchPublisher touchPublisher = new TouchPublisher();
+	long frameCount = 0;
+
+	public StereoVisionProcessor () {
+		bgSubtractor.setMetrics(metrics);
+	}
+
+	/**
+	 * Returns the latencies and counts recorded while processing: the
+	 * stages calibration, foreground0/1, clustering0/1, display and
+	 * matching, and the counters clusters, hotPixels (the pixels of all
+	 * foreground clusters found) and touches
+	 */
+	public Metrics getMetrics () {
+		return metrics;
+	}
+
+	/**
+	 * Returns the publisher of each pair's touch events. Listeners are
+	 * called on threads of their own; processing never waits for them
+	 * unless they subscribe with Backpressure.BLOCK.
+	 */
+	public TouchPublisher getTouchPublisher () {
+		return touchPublisher;
+	}
+
+	/**
+	 * Sets where the clusters of each frame, and the calibrator's 
+	 * alignment, are shown
+	 */
+	public void setPreview (Preview preview) {
+		this.preview = preview;
+		cameraCalibrator.setPreview(preview);
+	}
 	
 	public void processImagePair (Image img0, Image img1) {
-		image0 = getBufferedImage(img0);
-		image1 = getBufferedImage(img1);
+		processImagePair(getBufferedImage(img0), getBufferedImage(img1));
+	}
 
-		raster0 = image0.getData();
-		raster1 = image1.getData();
+	/**
+	 * Processes a pair of decoded images in place, reading their rasters
+	 * without copying them. Nothing here writes to the images, and nothing
+	 * keeps their rasters past the call, so the caller may reuse them for
+	 * later frames.
+	 */
+	public void processImagePair (BufferedImage img0, BufferedImage img1) {
+		processImagePair(img0, img1, System.currentTimeMillis());
+	}
 
+	/**
+	 * Processes a pair as above, publishing its touch events with the
+	 * given capture time of img0
+	 */
+	public void processImagePair (BufferedImage img0, BufferedImage img1,
+			long timestamp) {
+		image0 = img0;
+		image1 = img1;
+
+		raster0 = image0.getRaster();
+		raster1 = image1.getRaster();
+
+		long start = System.nanoTime();
 		cameraCalibrator.checkCameraCalibration(raster0, raster1);
-		ArrayList<Cluster> bg0Clusters = bgSubtractor.getForeground0(raster0);
-		ArrayList<Cluster> bg1Clusters = bgSubtractor.getForeground1(raster1);
+		calibrationLatency.recordSince(start);
+
+		ForegroundPair foregrounds = bgSubtractor.getForegrounds(raster0, raster1);
+		ArrayList<Cluster> bg0Clusters = foregrounds.clusters0;
+		ArrayList<Cluster> bg1Clusters = foregrounds.clusters1;
+		countClusters(bg0Clusters);
+		countClusters(bg1Clusters);
 		
-		int width = raster0.getWidth(), height = raster0.getHeight();
-		Clusterer.displayClusters(bg0Clusters, width, height, raster0, true);
-		Clusterer.displayClusters(bg1Clusters, width, height, raster1, false);
+		start = System.nanoTime();
+		preview.showClusters(Preview.LEFT, raster0, bg0Clusters);
+		preview.showClusters(Preview.RIGHT, raster1, bg1Clusters);
+		start = displayLatency.recordSince(start);
 		
-		ClusterMatcher.matchClusters(bg0Clusters, bg1Clusters);
+		ArrayList<TouchEvent> touches = 
+			ClusterMatcher.matchClusters(bg0Clusters, bg1Clusters);
+		matchingLatency.recordSince(start);
+		touchCount.add(touches.size());
+		if (touchPublisher.hasListeners())
+			touchPublisher.publish(new TouchFrame(frameCount, timestamp, touches));
+		frameCount++;
 		//rangeFinder.findRange(raster0, raster1);
 	}
 
+	private void countClusters (ArrayList<Cluster> clusters) {
+		int pixels = 0;
+		for (Cluster c : clusters)
+			pixels += c.size();
+		clusterCount.add(clusters.size());
+		hotPixelCount.add(pixels);
+	}
+
 	/**
 	 * Converts an image into a buffered image
 	 */
@@ -0,0 +1,610 @@
+package arTouch.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import javax.imageio.ImageIO;
+import javax.swing.ImageIcon;
+
+import arTouch.BGSubtractor;
+import arTouch.CameraCalibrator;
+import arTouch.ComponentLabeler;
+import arTouch.ImagePyramid;
+import arTouch.StereoVisionProcessor;
+import arTouch.Clusterer.Cluster;
+import arTouch.Clusterer.RasterRowAccess;
+import arTouch.pipeline.FrameDecoder;
+import arTouch.rangeFinders.CensusMatcher;
+import arTouch.rangeFinders.ClusterMatcher;
+import arTouch.rangeFinders.ProximityShifter;
+
+/**
+ * Times each per-frame kernel of the pipeline on a synthetic scene and
+ * reports nanoseconds and bytes allocated per frame.
+ * 
+ * Usage: KernelBenchmark [-w warmup] [-n iterations] [-r WxH]... [filter]
+ * 
+ * Run with a fixed heap (e.g. -Xms1g -Xmx1g) so GC noise is comparable
+ * between runs. Allocation figures count the benchmark thread and the
+ * threads of the parallel kernels' pools, but not BGSubtractor's own
+ * camera 1 thread, nor a pool thread that retires during a measurement.
+ *
+ * This is a plain main() loop, not JMH, since the project has no Maven
+ * or Gradle build to host a JMH module. It has none of JMH's safeguards:
+ * results are only kept from dead code elimination by storing them in
+ * sink, and every kernel runs in the same JVM, so one kernel's profile
+ * can skew the JIT for the next. Run one kernel per JVM, through the
+ * filter, when comparing numbers closely.
+ */
+public class KernelBenchmark {
+	/**
+	 * A single benchmarked operation. prepare is called once per 
+	 * resolution and is not timed; runFrame is one timed frame.
+	 */
+	public static abstract class Kernel {
+		public final String name;
+
+		public Kernel (String name) {
+			this.name = name;
+		}
+
+		public abstract void prepare (SyntheticScene scene);
+
+		public abstract void runFrame ();
+	}
+
+	public static final int[][] DEFAULT_RESOLUTIONS = 
+		{ {320, 240}, {640, 480}, {1280, 720} };
+
+	/**
+	 * Pool sizes the parallel kernels are measured with
+	 */
+	public static final int[] PARALLEL_CORES = { 1, 2, 4, 8 };
+
+	private static final ForkJoinPool[] pools = 
+		new ForkJoinPool[PARALLEL_CORES[PARALLEL_CORES.length - 1] + 1];
+
+	/**
+	 * Every worker thread the pools have started
+	 */
+	private static final List<Thread> poolThreads = 
+		new CopyOnWriteArrayList<Thread>();
+
+	private static final ThreadMXBean threadBean = 
+		ManagementFactory.getThreadMXBean();
+
+	/**
+	 * Keeps results alive so the JIT cannot discard the work
+	 */
+	static volatile Object sink;
+
+	/**
+	 * Builds the list of kernels to benchmark
+	 */
+	public static ArrayList<Kernel> createKernels () {
+		ArrayList<Kernel> kernels = new ArrayList<Kernel>();
+
+		kernels.add(new Kernel("Clusterer.findClusters") {
+			RasterRowAccess ra0 = new RasterRowAccess();
+			RasterRowAccess ra1 = new RasterRowAccess();
+			ComponentLabeler labeler = new ComponentLabeler();
+			int width, height;
+
+			public void prepare (SyntheticScene scene) {
+				ra0.raster = scene.fgRaster0;
+				ra1.raster = scene.bgRaster0;
+				width = scene.width;
+				height = scene.height;
+			}
+
+			public void runFrame () {
+				sink = labeler.findClusters(ra0, ra1, width, height,
+						BGSubtractor.MIN_DIFF_THRESHOLD, 
+						BGSubtractor.MIN_CLUSTER_THRESHOLD);
+			}
+		});
+
+		for (final int cores : PARALLEL_CORES) {
+			kernels.add(new Kernel("ComponentLabeler.parallel-" + cores) {
+				RasterRowAccess ra0 = new RasterRowAccess();
+				RasterRowAccess ra1 = new RasterRowAccess();
+				ComponentLabeler labeler = new ComponentLabeler();
+				int width, height;
+
+				public void prepare (SyntheticScene scene) {
+					ra0.raster = scene.fgRaster0;
+					ra1.raster = scene.bgRaster0;
+					width = scene.width;
+					height = scene.height;
+					labeler.setParallel(poolFor(cores), cores * 2);
+				}
+
+				public void runFrame () {
+					sink = labeler.findClusters(ra0, ra1, width, height,
+							BGSubtractor.MIN_DIFF_THRESHOLD, 
+							BGSubtractor.MIN_CLUSTER_THRESHOLD);
+				}
+			});
+		}
+
+		kernels.add(new Kernel("BGSubtractor.getForeground0") {
+			BGSubtractor bgSubtractor;
+			SyntheticScene scene;
+
+			public void prepare (SyntheticScene scene) {
+				this.scene = scene;
+				bgSubtractor = new BGSubtractor();
+				bgSubtractor.getForeground0(scene.bgRaster0);
+			}
+
+			public void runFrame () {
+				sink = bgSubtractor.getForeground0(scene.fgRaster0);
+			}
+		});
+
+		for (int l = 1; l <= ImagePyramid.MAX_LEVEL; l++) {
+			final int level = l;
+			kernels.add(new Kernel("BGSubtractor.getForeground0.level-" + level) {
+				BGSubtractor bgSubtractor;
+				SyntheticScene scene;
+
+				public void prepare (SyntheticScene scene) {
+					this.scene = scene;
+					bgSubtractor = new BGSubtractor();
+					bgSubtractor.setLevel(level);
+					bgSubtractor.getForeground0(scene.bgRaster0);
+				}
+
+				public void runFrame () {
+					sink = bgSubtractor.getForeground0(scene.fgRaster0);
+				}
+			});
+		}
+
+		kernels.add(new Kernel("ImagePyramid.build") {
+			ImagePyramid pyramid = new ImagePyramid();
+			RasterRowAccess ra = new RasterRowAccess();
+			int width, height;
+
+			public void prepare (SyntheticScene scene) {
+				ra.raster = scene.fgRaster0;
+				width = scene.width;
+				height = scene.height;
+			}
+
+			public void runFrame () {
+				pyramid.build(ra, width, height, ImagePyramid.MAX_LEVEL);
+				sink = pyramid;
+			}
+		});
+
+		kernels.add(new Kernel("BGSubtractor.getForeground1") {
+			BGSubtractor bgSubtractor;
+			SyntheticScene scene;
+
+			public void prepare (SyntheticScene scene) {
+				this.scene = scene;
+				bgSubtractor = new BGSubtractor();
+				bgSubtractor.getForeground1(scene.bgRaster1);
+			}
+
+			public void runFrame () {
+				sink = bgSubtractor.getForeground1(scene.fgRaster1);
+			}
+		});
+
+		kernels.add(new Kernel("BGSubtractor.getForegrounds") {
+			BGSubtractor bgSubtractor;
+			SyntheticScene scene;
+
+			public void prepare (SyntheticScene scene) {
+				this.scene = scene;
+				if (bgSubtractor != null)
+					bgSubtractor.shutdown();
+				bgSubtractor = new BGSubtractor();
+				bgSubtractor.getForegrounds(scene.bgRaster0, scene.bgRaster1);
+			}
+
+			public void runFrame () {
+				sink = bgSubtractor.getForegrounds(scene.fgRaster0, 
+						scene.fgRaster1);
+			}
+		});
+
+		kernels.add(new Kernel("CameraCalibrator.checkCameraCalibration") {
+			CameraCalibrator calibrator;
+			SyntheticScene scene;
+
+			public void prepare (SyntheticScene scene) {
+				this.scene = scene;
+				calibrator = calibratedFor(scene);
+			}
+
+			public void runFrame () {
+				calibrator.checkCameraCalibration(scene.fgRaster0, 
+						scene.fgRaster1);
+			}
+		});
+
+		kernels.add(new Kernel("CameraCalibrator.getCalibratedImage") {
+			CameraCalibrator calibrator;
+			SyntheticScene scene;
+
+			public void prepare (SyntheticScene scene) {
+				this.scene = scene;
+				calibrator = calibratedFor(scene);
+			}
+
+			// Includes the per frame check, which marks the remap stale
+			public void runFrame () {
+				calibrator.checkCameraCalibration(scene.fgRaster0, 
+						scene.fgRaster1);
+				sink = calibrator.getCalibratedImage();
+			}
+		});
+
+		kernels.add(new Kernel("CameraCalibrator.getMatchingPixel") {
+			CameraCalibrator calibrator;
+			int width, height;
+
+			public void prepare (SyntheticScene scene) {
+				calibrator = calibratedFor(scene);
+				width = scene.width;
+				height = scene.height;
+			}
+
+			public void runFrame () {
+				int sum = 0;
+				for (int y = 0; y < height; y++) {
+					for (int x = 0; x < width; x++) {
+						int[] rgb = calibrator.getMatchingPixel(x, y);
+						if (rgb != null)
+							sum += rgb[0];
+					}
+				}
+				sink = sum;
+			}
+		});
+
+		kernels.add(new Kernel("CameraCalibrator.getMatchingRow") {
+			CameraCalibrator calibrator;
+			int width, height;
+			int[] row;
+
+			public void prepare (SyntheticScene scene) {
+				calibrator = calibratedFor(scene);
+				width = scene.width;
+				height = scene.height;
+				row = new int[width];
+			}
+
+			public void runFrame () {
+				int sum = 0;
+				for (int y = 0; y < height; y++) {
+					calibrator.getMatchingRow(0, y, width, row);
+					sum += row[width / 2];
+				}
+				sink = sum;
+			}
+		});
+
+		kernels.add(new Kernel("ClusterMatcher.getShiftDiff") {
+			ClusterMatcher matcher;
+			ArrayList<Cluster> clusters;
+
+			public void prepare (SyntheticScene scene) {
+				matcher = matcherFor(scene);
+				clusters = hotClustersFor(scene);
+			}
+
+			public void runFrame () {
+				double sum = 0;
+				for (Cluster c : clusters)
+					sum += matcher.getShiftDiff(c, SyntheticScene.DISPARITY);
+				sink = sum;
+			}
+		});
+
+		kernels.add(new Kernel("ClusterMatcher.findQuickShift") {
+			ClusterMatcher matcher;
+			ArrayList<Cluster> clusters;
+
+			public void prepare (SyntheticScene scene) {
+				matcher = matcherFor(scene);
+				clusters = hotClustersFor(scene);
+			}
+
+			public void runFrame () {
+				int sum = 0;
+				for (Cluster c : clusters)
+					sum += matcher.findQuickShift(c);
+				sink = sum;
+			}
+		});
+
+		kernels.add(new Kernel("ClusterMatcher.findExhaustiveShifts") {
+			ClusterMatcher matcher;
+			ArrayList<Cluster> clusters;
+
+			public void prepare (SyntheticScene scene) {
+				matcher = matcherFor(scene);
+				clusters = hotClustersFor(scene);
+			}
+
+			public void runFrame () {
+				sink = matcher.findExhaustiveShifts(clusters);
+			}
+		});
+
+		kernels.add(new Kernel("CensusMatcher.findShifts") {
+			CensusMatcher matcher;
+			ArrayList<Cluster> clusters;
+			SyntheticScene scene;
+
+			public void prepare (SyntheticScene scene) {
+				this.scene = scene;
+				matcher = new CensusMatcher(calibratedFor(scene));
+				clusters = hotClustersFor(scene);
+			}
+
+			public void runFrame () {
+				// Census rows are transformed once per frame, on first use
+				matcher.setRasters(scene.fgRaster0, scene.fgRaster1);
+				sink = matcher.findShifts(clusters);
+			}
+		});
+
+		kernels.add(new DisparityKernel("ProximityShifter.findDisparities", 
+				ProximityShifter.DEFAULT_LEVEL, 0, false));
+		kernels.add(new DisparityKernel("ProximityShifter.level-0", 0, 0, 
+				false));
+		kernels.add(new DisparityKernel("ProximityShifter.offHeap", 
+				ProximityShifter.DEFAULT_LEVEL, 0, true));
+		for (int cores : PARALLEL_CORES)
+			kernels.add(new DisparityKernel("ProximityShifter.parallel-" + cores,
+					ProximityShifter.DEFAULT_LEVEL, cores, false));
+
+		kernels.add(new Kernel("StereoVisionProcessor.getBufferedImage") {
+			SyntheticScene scene;
+
+			public void prepare (SyntheticScene scene) {
+				this.scene = scene;
+			}
+
+			public void runFrame () {
+				sink = StereoVisionProcessor.getBufferedImage(
+						scene.foreground0);
+			}
+		});
+
+		// The decode stage as it was, the toolkit decoding the JPEG and
+		// PixelGrabber copying it out, then the raster copied once more
+		kernels.add(new Kernel("ImageIcon.decode") {
+			byte[] jpeg;
+
+			public void prepare (SyntheticScene scene) {
+				jpeg = encodeJpeg(scene.foreground0);
+			}
+
+			public void runFrame () {
+				sink = StereoVisionProcessor.getBufferedImage(
+						new ImageIcon(jpeg).getImage()).getData();
+			}
+		});
+
+		kernels.add(new Kernel("FrameDecoder.decode") {
+			FrameDecoder decoder = new FrameDecoder();
+			byte[] jpeg;
+
+			public void prepare (SyntheticScene scene) {
+				jpeg = encodeJpeg(scene.foreground0);
+			}
+
+			public void runFrame () {
+				try {
+					BufferedImage image = decoder.decode(jpeg);
+					sink = image.getRaster();
+					decoder.release(image);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+
+		return kernels;
+	}
+
+	/**
+	 * Encodes an image as a camera would send it. JPEG has no alpha, so
+	 * the image is drawn onto an opaque one first.
+	 */
+	static byte[] encodeJpeg (BufferedImage image) {
+		BufferedImage rgb = new BufferedImage(image.getWidth(), 
+				image.getHeight(), BufferedImage.TYPE_INT_RGB);
+		rgb.getGraphics().drawImage(image, 0, 0, null);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			ImageIO.write(rgb, "jpeg", out);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Dense disparities of the whole frame over the default disparity 
+	 * range, matched at the given pyramid level, sequential when cores
+	 * is 0
+	 */
+	static class DisparityKernel extends Kernel {
+		final int level, cores;
+		final boolean offHeap;
+		ProximityShifter shifter;
+		int[] packed0, calibrated1;
+		int width, height;
+
+		DisparityKernel (String name, int level, int cores, boolean offHeap) {
+			super(name);
+			this.level = level;
+			this.cores = cores;
+			this.offHeap = offHeap;
+		}
+
+		public void prepare (SyntheticScene scene) {
+			CameraCalibrator calibrator = calibratedFor(scene);
+			packed0 = calibrator.getPackedImage0();
+			calibrated1 = calibrator.getCalibratedImage();
+			width = scene.width;
+			height = scene.height;
+
+			shifter = new ProximityShifter(calibrator);
+			shifter.setLevel(level);
+			shifter.setOffHeap(offHeap);
+			if (cores > 0)
+				shifter.setParallel(poolFor(cores), cores * 2);
+		}
+
+		public void runFrame () {
+			sink = shifter.findDisparities(packed0, calibrated1, width, height);
+		}
+	}
+
+	private static synchronized ForkJoinPool poolFor (int cores) {
+		if (pools[cores] == null)
+			pools[cores] = new ForkJoinPool(cores, 
+					new ForkJoinWorkerThreadFactory() {
+						public ForkJoinWorkerThread newThread (ForkJoinPool pool) {
+							ForkJoinWorkerThread t = ForkJoinPool
+								.defaultForkJoinWorkerThreadFactory.newThread(pool);
+							poolThreads.add(t);
+							return t;
+						}
+					}, null, false);
+		return pools[cores];
+	}
+
+	private static CameraCalibrator calibratedFor (SyntheticScene scene) {
+		CameraCalibrator calibrator = new CameraCalibrator();
+		calibrator.checkCameraCalibration(scene.bgRaster0, scene.bgRaster1);
+		calibrator.checkCameraCalibration(scene.fgRaster0, scene.fgRaster1);
+		return calibrator;
+	}
+
+	private static ClusterMatcher matcherFor (SyntheticScene scene) {
+		ClusterMatcher matcher = new ClusterMatcher(calibratedFor(scene));
+		matcher.setRasters(scene.fgRaster0, scene.fgRaster1);
+		return matcher;
+	}
+
+	private static ArrayList<Cluster> hotClustersFor (SyntheticScene scene) {
+		BGSubtractor bgSubtractor = new BGSubtractor();
+		bgSubtractor.getForeground0(scene.bgRaster0);
+		return bgSubtractor.getForeground0(scene.fgRaster0);
+	}
+
+	/**
+	 * Returns the bytes allocated so far by the current thread and each
+	 * live pool thread, by thread id, or null if the JVM does not support
+	 * allocation accounting.
+	 */
+	static Map<Long, Long> allocatedBytes () {
+		if (!(threadBean instanceof com.sun.management.ThreadMXBean))
+			return null;
+
+		ArrayList<Thread> threads = new ArrayList<Thread>(poolThreads);
+		threads.add(Thread.currentThread());
+		long[] ids = new long[threads.size()];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = threads.get(i).getId();
+		long[] bytes = ((com.sun.management.ThreadMXBean) threadBean)
+			.getThreadAllocatedBytes(ids);
+
+		Map<Long, Long> allocated = new HashMap<Long, Long>();
+		for (int i = 0; i < ids.length; i++)
+			if (bytes[i] >= 0)
+				allocated.put(ids[i], bytes[i]);
+		return allocated;
+	}
+
+	/**
+	 * Returns the bytes allocated between two allocatedBytes calls by the
+	 * threads alive at the second, those started in between counting in
+	 * full
+	 */
+	static long allocatedBetween (Map<Long, Long> start, 
+			Map<Long, Long> end) {
+		long total = 0;
+		for (Map.Entry<Long, Long> thread : end.entrySet()) {
+			Long before = start.get(thread.getKey());
+			total += thread.getValue() - (before == null ? 0 : before);
+		}
+		return total;
+	}
+
+	/**
+	 * Runs one kernel and prints a result line
+	 */
+	public static void measure (Kernel kernel, SyntheticScene scene, 
+			int warmup, int iterations) {
+		kernel.prepare(scene);
+
+		for (int i = 0; i < warmup; i++)
+			kernel.runFrame();
+
+		Map<Long, Long> bytesStart = allocatedBytes();
+		long timeStart = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			kernel.runFrame();
+		long elapsed = System.nanoTime() - timeStart;
+		Map<Long, Long> bytesEnd = allocatedBytes();
+
+		System.out.printf("%-45s %5dx%-5d %14d ns/frame %14d B/frame\n",
+				kernel.name, scene.width, scene.height, 
+				elapsed / iterations, bytesStart == null ? -1 : 
+					allocatedBetween(bytesStart, bytesEnd) / iterations);
+	}
+
+	public static void main (String[] args) {
+		int warmup = 5, iterations = 20;
+		ArrayList<int[]> resolutions = new ArrayList<int[]>();
+		String filter = null;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-w"))
+				warmup = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-n"))
+				iterations = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-r")) {
+				String[] dims = args[++i].split("x");
+				resolutions.add(new int[] { Integer.parseInt(dims[0]), 
+						Integer.parseInt(dims[1]) });
+			} else
+				filter = args[i];
+		}
+
+		if (resolutions.isEmpty())
+			for (int[] res : DEFAULT_RESOLUTIONS)
+				resolutions.add(res);
+
+		for (int[] res : resolutions) {
+			SyntheticScene scene = new SyntheticScene(res[0], res[1]);
+			for (Kernel kernel : createKernels()) {
+				if (filter != null && !kernel.name.contains(filter))
+					continue;
+				measure(kernel, scene, warmup, iterations);
+			}
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package arTouch.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.util.Random;
+
+import arTouch.StereoVisionProcessor;
+
+/**
+ * Generates a deterministic stereo scene for benchmarking: a textured
+ * background seen by both cameras plus a hand sized blob that appears
+ * with a horizontal disparity between the two views.
+ * 
+ * Camera 1 is displaced by the CameraCalibrator's default offset (so
+ * camera1(x + offsetX, y + offsetY) shows what camera0(x, y) does) and
+ * has a slight color cast, roughly like our two webcams.
+ */
+public class SyntheticScene {
+	public static final int CAMERA_OFFSET_X = -10, CAMERA_OFFSET_Y = 15;
+	public static final int DISPARITY = 24;
+
+	public final int width, height;
+	public final BufferedImage background0, background1;
+	public final BufferedImage foreground0, foreground1;
+	public final Raster bgRaster0, bgRaster1, fgRaster0, fgRaster1;
+
+	public SyntheticScene (int width, int height) {
+		this.width = width;
+		this.height = height;
+
+		// The world is larger than either view so both cameras see texture
+		int worldW = width + Math.abs(CAMERA_OFFSET_X) * 2;
+		int worldH = height + Math.abs(CAMERA_OFFSET_Y) * 2;
+		int[] world = new int[worldW * worldH];
+		Random r = new Random(42);
+		for (int y = 0; y < worldH; y++) {
+			for (int x = 0; x < worldW; x++) {
+				int red = (x * 255 / worldW + r.nextInt(6)) & 0xff;
+				int green = (y * 255 / worldH + r.nextInt(6)) & 0xff;
+				int blue = (((x / 16 + y / 16) & 1) * 60 + 80 + r.nextInt(6)) & 0xff;
+				world[y * worldW + x] = 0xff000000 | red << 16 | green << 8 | blue;
+			}
+		}
+
+		int left = Math.abs(CAMERA_OFFSET_X), top = Math.abs(CAMERA_OFFSET_Y);
+		int[] bg0 = crop(world, worldW, left, top, 0);
+		int[] bg1 = crop(world, worldW, left - CAMERA_OFFSET_X,
+				top - CAMERA_OFFSET_Y, 0x0a0604);
+
+		int[] fg0 = bg0.clone();
+		int[] fg1 = bg1.clone();
+		int blobW = width / 6, blobH = height / 3;
+		int blobX = width / 2, blobY = height / 2;
+		paintBlob(fg0, blobX, blobY, blobW, blobH, 0);
+		paintBlob(fg1, blobX + CAMERA_OFFSET_X - DISPARITY, 
+				blobY + CAMERA_OFFSET_Y, blobW, blobH, 0x0a0604);
+
+		background0 = toImage(bg0);
+		background1 = toImage(bg1);
+		foreground0 = toImage(fg0);
+		foreground1 = toImage(fg1);
+
+		bgRaster0 = background0.getData();
+		bgRaster1 = background1.getData();
+		fgRaster0 = foreground0.getData();
+		fgRaster1 = foreground1.getData();
+	}
+
+	private int[] crop (int[] world, int worldW, int left, int top, int cast) {
+		int[] out = new int[width * height];
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				out[y * width + x] = 
+					addCast(world[(y + top) * worldW + x + left], cast);
+		return out;
+	}
+
+	private void paintBlob (int[] pixels, int cx, int cy, int rw, int rh,
+			int cast) {
+		for (int y = cy - rh; y <= cy + rh; y++) {
+			for (int x = cx - rw; x <= cx + rw; x++) {
+				if (x < 0 || y < 0 || x >= width || y >= height)
+					continue;
+				double dx = (x - cx) / (double) rw, dy = (y - cy) / (double) rh;
+				if (dx * dx + dy * dy > 1.0)
+					continue;
+				int shade = 200 + (int) (40 * dx);
+				int skin = 0xff000000 | shade << 16 | (shade * 3 / 4) << 8 | 
+					(shade / 2);
+				pixels[y * width + x] = addCast(skin, cast);
+			}
+		}
+	}
+
+	private static int addCast (int argb, int cast) {
+		int red = Math.min(255, ((argb >> 16) & 0xff) + ((cast >> 16) & 0xff));
+		int green = Math.min(255, ((argb >> 8) & 0xff) + ((cast >> 8) & 0xff));
+		int blue = Math.min(255, (argb & 0xff) + (cast & 0xff));
+		return 0xff000000 | red << 16 | green << 8 | blue;
+	}
+
+	/**
+	 * Builds images the same way the live pipeline does, so rasters have
+	 * the same sample model.
+	 */
+	private BufferedImage toImage (int[] pixels) {
+		BufferedImage image = new BufferedImage(width, height, 
+				BufferedImage.TYPE_INT_ARGB);
+		image.setRGB(0, 0, width, height, pixels, 0, width);
+		return StereoVisionProcessor.getBufferedImage(image);
+	}
+}
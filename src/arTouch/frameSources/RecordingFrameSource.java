@@ -0,0 +1,64 @@
+package arTouch.frameSources;
+
+import arTouch.FrameSource;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Wraps another frame source and writes every frame it hands out to
+ * disk, in the layout expected by the ReplayFrameSource. Files are named
+ * by the wrapped source's capture timestamps.
+ */
+public class RecordingFrameSource implements FrameSource {
+	private FrameSource source;
+	private File directory;
+
+	/**
+	 * @param source the source to record
+	 * @param cameraDirectory the per camera directory, e.g. session/cam0
+	 */
+	public RecordingFrameSource (FrameSource source, File cameraDirectory) {
+		this.source = source;
+		this.directory = cameraDirectory;
+	}
+
+	public void start () throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create " + directory);
+		source.start();
+	}
+
+	public byte[] getFrame () throws IOException {
+		byte[] b = source.getFrame();
+		if (b == null)
+			return null;
+
+		File f = new File(directory, 
+				String.format("%013d.jpg", source.getFrameTimestamp()));
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(b);
+		} finally {
+			out.close();
+		}
+		return b;
+	}
+
+	public long getFrameTimestamp () {
+		return source.getFrameTimestamp();
+	}
+
+	public int getWidth () {
+		return source.getWidth();
+	}
+
+	public int getHeight () {
+		return source.getHeight();
+	}
+
+	public void stop () {
+		source.stop();
+	}
+}
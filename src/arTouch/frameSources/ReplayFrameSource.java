@@ -0,0 +1,153 @@
+package arTouch.frameSources;
+
+import arTouch.FrameSource;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Replays frames recorded by the RecordingFrameSource. A recorded 
+ * session is a directory holding one sub-directory per camera 
+ * (cam0, cam1) whose files are named by capture time in milliseconds.
+ * 
+ * Frames are either replayed at their recorded pace or as fast as
+ * they can be read, which is what we want when measuring throughput.
+ */
+public class ReplayFrameSource implements FrameSource {
+	/**
+	 * Used when a file name does not carry a timestamp
+	 */
+	public static final int DEFAULT_FRAME_INTERVAL = 33;
+
+	private File[] frames;
+	private long[] timestamps;
+	private long sessionStart;
+	private long replayStart;
+	private boolean realTime;
+	private int nextFrame = 0;
+	private int width, height;
+
+	public ReplayFrameSource (File cameraDirectory, boolean realTime) 
+	throws IOException {
+		this.realTime = realTime;
+
+		frames = cameraDirectory.listFiles(new FileFilter() {
+			public boolean accept (File f) {
+				String name = f.getName().toLowerCase();
+				return f.isFile() && (name.endsWith(".jpg") || 
+						name.endsWith(".jpeg") || name.endsWith(".png"));
+			}
+		});
+		if (frames == null || frames.length == 0)
+			throw new IOException("No frames found in " + cameraDirectory);
+		Arrays.sort(frames);
+
+		timestamps = new long[frames.length];
+		for (int i = 0; i < frames.length; i++)
+			timestamps[i] = parseTimestamp(frames[i], i);
+		sessionStart = timestamps[0];
+
+		BufferedImage first = ImageIO.read(frames[0]);
+		if (first == null)
+			throw new IOException("Unable to decode " + frames[0]);
+		width = first.getWidth();
+		height = first.getHeight();
+	}
+
+	/**
+	 * Opens both cameras of a recorded session. The two sources share a
+	 * time base so that paired frames come out together when replaying
+	 * in real time.
+	 */
+	public static ReplayFrameSource[] openSession (File sessionDirectory,
+			boolean realTime) throws IOException {
+		ReplayFrameSource cam0 = new ReplayFrameSource(
+				new File(sessionDirectory, "cam0"), realTime);
+		ReplayFrameSource cam1 = new ReplayFrameSource(
+				new File(sessionDirectory, "cam1"), realTime);
+
+		long start = Math.min(cam0.sessionStart, cam1.sessionStart);
+		cam0.sessionStart = start;
+		cam1.sessionStart = start;
+
+		return new ReplayFrameSource[] { cam0, cam1 };
+	}
+
+	private static long parseTimestamp (File f, int index) {
+		String name = f.getName();
+		int dot = name.lastIndexOf('.');
+		try {
+			return Long.parseLong(name.substring(0, dot));
+		} catch (NumberFormatException e) {
+			return index * (long) DEFAULT_FRAME_INTERVAL;
+		}
+	}
+
+	public void start () {
+		nextFrame = 0;
+		replayStart = System.currentTimeMillis();
+	}
+
+	public byte[] getFrame () throws IOException {
+		if (nextFrame >= frames.length)
+			return null;
+
+		if (realTime) {
+			long due = replayStart + timestamps[nextFrame] - sessionStart;
+			long wait = due - System.currentTimeMillis();
+			if (wait > 0) {
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			}
+		}
+
+		File f = frames[nextFrame++];
+		byte[] b = new byte[(int) f.length()];
+		FileInputStream in = new FileInputStream(f);
+		try {
+			int read = 0;
+			while (read < b.length) {
+				int n = in.read(b, read, b.length - read);
+				if (n < 0)
+					throw new IOException("Unexpected end of " + f);
+				read += n;
+			}
+		} finally {
+			in.close();
+		}
+		return b;
+	}
+
+	/**
+	 * Returns the recorded capture time of the frame last returned
+	 */
+	public long getFrameTimestamp () {
+		return timestamps[Math.max(nextFrame - 1, 0)];
+	}
+
+	public int getFrameCount () {
+		return frames.length;
+	}
+
+	public int getWidth () {
+		return width;
+	}
+
+	public int getHeight () {
+		return height;
+	}
+
+	public void stop () {
+		nextFrame = frames.length;
+	}
+}
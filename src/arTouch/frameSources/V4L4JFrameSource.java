@@ -0,0 +1,83 @@
+package arTouch.frameSources;
+
+import arTouch.FrameSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import au.edu.jcu.v4l4j.FrameGrabber;
+import au.edu.jcu.v4l4j.VideoDevice;
+import au.edu.jcu.v4l4j.exceptions.V4L4JException;
+
+/**
+ * Captures JPEG frames from a webcam through v4l4j.
+ */
+public class V4L4JFrameSource implements FrameSource {
+	private String deviceIdentifier;
+	private VideoDevice vd;
+	private FrameGrabber fg;
+	private int width, height, channel, std, quality;
+	private long frameTimestamp;
+
+	public V4L4JFrameSource (String deviceIdentifier, int width, int height,
+			int channel, int std, int quality) {
+		this.deviceIdentifier = deviceIdentifier;
+		this.width = width;
+		this.height = height;
+		this.channel = channel;
+		this.std = std;
+		this.quality = quality;
+	}
+
+	public void start () throws IOException {
+		try {
+			vd = new VideoDevice(deviceIdentifier);
+			fg = vd.getJPEGFrameGrabber(width, height, channel, std, quality);
+			fg.startCapture();
+		} catch (V4L4JException e) {
+			throw new IOException("Unable to open " + deviceIdentifier, e);
+		}
+		width = fg.getWidth();
+		height = fg.getHeight();
+		System.out.println("Starting capture at " + width + "x" + height);
+	}
+
+	public byte[] getFrame () throws IOException {
+		try {
+			ByteBuffer bb = fg.getFrame();
+			frameTimestamp = System.currentTimeMillis();
+			byte[] b = new byte[bb.limit()];
+			bb.get(b);
+			return b;
+		} catch (V4L4JException e) {
+			throw new IOException("Failed to capture image", e);
+		}
+	}
+
+	/**
+	 * Returns the time the last frame was handed over by the driver
+	 */
+	public long getFrameTimestamp () {
+		return frameTimestamp;
+	}
+
+	public int getWidth () {
+		return width;
+	}
+
+	public int getHeight () {
+		return height;
+	}
+
+	public String getDeviceIdentifier () {
+		return deviceIdentifier;
+	}
+
+	public void stop () {
+		if (fg != null) {
+			fg.stopCapture();
+			vd.releaseFrameGrabber();
+			fg = null;
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package arTouch.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A running total, e.g. of frames processed, that any thread may add to
+ */
+public class Counter implements CounterMXBean {
+	public final String name;
+	private final AtomicLong value = new AtomicLong();
+
+	public Counter (String name) {
+		this.name = name;
+	}
+
+	public void add (long delta) {
+		value.addAndGet(delta);
+	}
+
+	public void increment () {
+		value.incrementAndGet();
+	}
+
+	/**
+	 * Replaces the total, for counts kept elsewhere and copied in
+	 */
+	public void set (long total) {
+		value.set(total);
+	}
+
+	public long getValue () {
+		return value.get();
+	}
+}
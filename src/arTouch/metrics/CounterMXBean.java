@@ -0,0 +1,8 @@
+package arTouch.metrics;
+
+/**
+ * The management view of a Counter
+ */
+public interface CounterMXBean {
+	public long getValue ();
+}
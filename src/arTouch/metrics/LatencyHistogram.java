@@ -0,0 +1,181 @@
+package arTouch.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds, cheap enough to record into
+ * on every frame. Buckets are log-linear: values below 2^SUB_BITS get a
+ * bucket each, and every power of two above that is split into
+ * 2^SUB_BITS equal buckets, so any value is known to within 1/32 of
+ * itself. Values past the last bucket (about 9 hours) land in it.
+ *
+ * Recording is one bucket increment plus the running sum, all atomic, so
+ * any number of threads may record and read at once without locks.
+ */
+public class LatencyHistogram implements LatencyMXBean {
+	private static final int SUB_BITS = 5;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int MAX_EXPONENT = 44;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) << SUB_BITS;
+
+	public final String name;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong sum = new AtomicLong();
+
+	public LatencyHistogram (String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Records one latency
+	 */
+	public void record (long nanos) {
+		counts.incrementAndGet(bucket(Math.max(nanos, 0)));
+		sum.addAndGet(nanos);
+	}
+
+	/**
+	 * Records the time since startNanos, a System.nanoTime, and returns
+	 * the current System.nanoTime so that stages can be timed back to back
+	 */
+	public long recordSince (long startNanos) {
+		long now = System.nanoTime();
+		record(now - startNanos);
+		return now;
+	}
+
+	static int bucket (long value) {
+		if (value < SUB_COUNT)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT)
+			return BUCKETS - 1;
+		int mantissa = (int) (value >>> (exponent - SUB_BITS));
+		return (exponent - SUB_BITS + 1) << SUB_BITS | (mantissa - SUB_COUNT);
+	}
+
+	/**
+	 * The smallest value that falls in a bucket
+	 */
+	static long bucketStart (int bucket) {
+		if (bucket < SUB_COUNT)
+			return bucket;
+		int exponent = (bucket >> SUB_BITS) + SUB_BITS - 1;
+		long mantissa = (bucket & (SUB_COUNT - 1)) + SUB_COUNT;
+		return mantissa << (exponent - SUB_BITS);
+	}
+
+	/**
+	 * Copies the histogram as it stands. Recording carries on while the
+	 * copy is taken, so a record made meanwhile may be half included.
+	 */
+	public Snapshot snapshot () {
+		long[] copy = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+			count += copy[i];
+		}
+		return new Snapshot(name, copy, count, sum.get());
+	}
+
+	/**
+	 * The latencies recorded up to some moment, or between two moments
+	 */
+	public static class Snapshot {
+		public final String name;
+		private final long[] counts;
+		private final long count, sum;
+
+		Snapshot (String name, long[] counts, long count, long sum) {
+			this.name = name;
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+		}
+
+		/**
+		 * Returns the latencies recorded after earlier was taken
+		 */
+		public Snapshot since (Snapshot earlier) {
+			long[] diff = new long[counts.length];
+			for (int i = 0; i < diff.length; i++)
+				diff[i] = counts[i] - earlier.counts[i];
+			return new Snapshot(name, diff, count - earlier.count,
+					sum - earlier.sum);
+		}
+
+		public long getCount () {
+			return count;
+		}
+
+		public double getMeanMillis () {
+			return count == 0 ? 0 : sum / (count * 1e6);
+		}
+
+		/**
+		 * Returns the latency that the given fraction (0 to 1) of the
+		 * records are at or below, as the middle of its bucket
+		 */
+		public double getPercentileMillis (double fraction) {
+			if (count == 0)
+				return 0;
+			long rank = Math.max(1, (long) Math.ceil(fraction * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank)
+					return middle(i) / 1e6;
+			}
+			return middle(counts.length - 1) / 1e6;
+		}
+
+		/**
+		 * Returns the middle of the highest bucket recorded into
+		 */
+		public double getMaxMillis () {
+			for (int i = counts.length - 1; i >= 0; i--)
+				if (counts[i] > 0)
+					return middle(i) / 1e6;
+			return 0;
+		}
+
+		private static double middle (int bucket) {
+			long start = bucketStart(bucket);
+			long end = bucket + 1 < BUCKETS ? bucketStart(bucket + 1) : 2 * start;
+			return (start + end - 1) / 2.0;
+		}
+
+		public String toString () {
+			return String.format("%-12s n=%-7d p50 %7.2fms p99 %7.2fms" +
+					" p999 %7.2fms max %7.2fms", name, count,
+					getPercentileMillis(0.5), getPercentileMillis(0.99),
+					getPercentileMillis(0.999), getMaxMillis());
+		}
+	}
+
+	public long getCount () {
+		return snapshot().getCount();
+	}
+
+	public double getMeanMillis () {
+		return snapshot().getMeanMillis();
+	}
+
+	public double getP50Millis () {
+		return snapshot().getPercentileMillis(0.5);
+	}
+
+	public double getP99Millis () {
+		return snapshot().getPercentileMillis(0.99);
+	}
+
+	public double getP999Millis () {
+		return snapshot().getPercentileMillis(0.999);
+	}
+
+	public double getMaxMillis () {
+		return snapshot().getMaxMillis();
+	}
+}
@@ -0,0 +1,19 @@
+package arTouch.metrics;
+
+/**
+ * The management view of a LatencyHistogram, over everything it has
+ * recorded. Percentiles are in milliseconds.
+ */
+public interface LatencyMXBean {
+	public long getCount ();
+
+	public double getMeanMillis ();
+
+	public double getP50Millis ();
+
+	public double getP99Millis ();
+
+	public double getP999Millis ();
+
+	public double getMaxMillis ();
+}
@@ -0,0 +1,187 @@
+package arTouch.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import arTouch.metrics.LatencyHistogram.Snapshot;
+
+/**
+ * The latency histograms and counters of one processor, by name. Stages
+ * and counters are looked up once, when whatever records into them is
+ * set up; recording into them afterwards takes no lock.
+ *
+ * They can be published as platform MXBeans, named
+ * arTouch:type=Latency,name=stage and arTouch:type=Counter,name=counter,
+ * and summarised periodically on standard output.
+ */
+public class Metrics {
+	public static final String DOMAIN = "arTouch";
+
+	private final Map<String, LatencyHistogram> stages =
+		new LinkedHashMap<String, LatencyHistogram>();
+	private final Map<String, Counter> counters =
+		new LinkedHashMap<String, Counter>();
+	private final List<ObjectName> registered = new ArrayList<ObjectName>();
+	private boolean publishing = false;
+	private ScheduledExecutorService reporter;
+
+	/**
+	 * Returns the histogram of the named stage, creating it the first time
+	 */
+	public synchronized LatencyHistogram getStage (String name) {
+		LatencyHistogram stage = stages.get(name);
+		if (stage == null) {
+			stage = new LatencyHistogram(name);
+			stages.put(name, stage);
+			if (publishing)
+				register(objectName("Latency", name), stage);
+		}
+		return stage;
+	}
+
+	/**
+	 * Returns the named counter, creating it the first time
+	 */
+	public synchronized Counter getCounter (String name) {
+		Counter counter = counters.get(name);
+		if (counter == null) {
+			counter = new Counter(name);
+			counters.put(name, counter);
+			if (publishing)
+				register(objectName("Counter", name), counter);
+		}
+		return counter;
+	}
+
+	/**
+	 * Registers every stage and counter, and those created later, with
+	 * the platform MBean server. Beans of the same name already there,
+	 * e.g. from an earlier processor, are replaced.
+	 */
+	public synchronized void registerMBeans () {
+		if (publishing)
+			return;
+		publishing = true;
+		for (LatencyHistogram stage : stages.values())
+			register(objectName("Latency", stage.name), stage);
+		for (Counter counter : counters.values())
+			register(objectName("Counter", counter.name), counter);
+	}
+
+	public synchronized void unregisterMBeans () {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName name : registered) {
+			try {
+				if (server.isRegistered(name))
+					server.unregisterMBean(name);
+			} catch (JMException e) {
+				System.out.println("Failed to unregister " + name + ": " + e);
+			}
+		}
+		registered.clear();
+		publishing = false;
+	}
+
+	private static ObjectName objectName (String type, String name) {
+		try {
+			return new ObjectName(DOMAIN + ":type=" + type + ",name=" + name);
+		} catch (JMException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	private void register (ObjectName name, Object bean) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+			server.registerMBean(bean, name);
+			registered.add(name);
+		} catch (JMException e) {
+			System.out.println("Failed to register " + name + ": " + e);
+		}
+	}
+
+	/**
+	 * Prints a summary every period seconds on a daemon thread: each
+	 * stage's percentiles and each counter's increase over the period
+	 */
+	public synchronized void startSummary (long period) {
+		stopSummary();
+		reporter = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+					public Thread newThread (Runnable r) {
+						Thread t = new Thread(r, "Metrics Summary Thread");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		reporter.scheduleAtFixedRate(new Runnable() {
+			final Map<String, Snapshot> lastStages =
+				new HashMap<String, Snapshot>();
+			final Map<String, Long> lastCounters = new HashMap<String, Long>();
+
+			public void run () {
+				System.out.print(getSummary(lastStages, lastCounters));
+			}
+		}, period, period, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stopSummary () {
+		if (reporter != null) {
+			reporter.shutdown();
+			reporter = null;
+		}
+	}
+
+	/**
+	 * Returns a summary of everything recorded so far
+	 */
+	public String getSummary () {
+		return getSummary(new HashMap<String, Snapshot>(),
+				new HashMap<String, Long>());
+	}
+
+	/**
+	 * Returns a summary of what was recorded since the given snapshots
+	 * and counter values were taken, and replaces them with the current
+	 * ones. Stages and counters missing from them are summarised in full.
+	 */
+	private String getSummary (Map<String, Snapshot> lastStages,
+			Map<String, Long> lastCounters) {
+		List<LatencyHistogram> stageList;
+		List<Counter> counterList;
+		synchronized (this) {
+			stageList = new ArrayList<LatencyHistogram>(stages.values());
+			counterList = new ArrayList<Counter>(counters.values());
+		}
+
+		StringBuilder out = new StringBuilder();
+		for (LatencyHistogram stage : stageList) {
+			Snapshot now = stage.snapshot();
+			Snapshot last = lastStages.put(stage.name, now);
+			Snapshot period = last == null ? now : now.since(last);
+			if (period.getCount() > 0)
+				out.append(period).append('\n');
+		}
+		for (Counter counter : counterList) {
+			long now = counter.getValue();
+			Long last = lastCounters.put(counter.name, now);
+			out.append(String.format("%s:%d ", counter.name,
+					last == null ? now : now - last));
+		}
+		return out.append('\n').toString();
+	}
+}
@@ -0,0 +1,145 @@
+package arTouch.pipeline;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * Decodes the encoded frames of one camera into packed RGB images, once
+ * per frame. The same image is then shown on screen and read by stereo
+ * processing, without any further copies.
+ *
+ * The ImageIO reader is kept from frame to frame. It decodes into a
+ * reused 3 byte BGR image, its native layout, which is then packed in
+ * one pass into an image taken from a small pool. Asking the reader for
+ * packed ints directly is slower, as it converts pixel by pixel through
+ * the color model. An image must be handed back with release once
+ * nothing reads it any more; images that are never released (e.g. those
+ * of dropped pairs) are simply left to the garbage collector and the
+ * pool allocates new ones.
+ *
+ * A decoder is used by a single thread, apart from release which may
+ * be called from any.
+ */
+public class FrameDecoder {
+	/**
+	 * The most free images kept for reuse
+	 */
+	public static final int MAX_POOLED = 8;
+
+	private ImageReader reader;
+	private final ImageReadParam param;
+	private BufferedImage staging;
+	private final ConcurrentLinkedQueue<BufferedImage> pool =
+		new ConcurrentLinkedQueue<BufferedImage>();
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	public FrameDecoder () {
+		reader = getReader("jpeg");
+		param = reader.getDefaultReadParam();
+	}
+
+	private static ImageReader getReader (String format) {
+		Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName(format);
+		if (!readers.hasNext())
+			throw new IllegalStateException("No ImageIO reader for " + format);
+		return readers.next();
+	}
+
+	/**
+	 * Decodes a frame into a pooled TYPE_INT_RGB image. Frames that are
+	 * not JPEG (e.g. PNG files of a recorded session) get a reader of
+	 * their own, which is then kept for the frames after.
+	 */
+	public BufferedImage decode (byte[] encoded) throws IOException {
+		// Not ImageIO.createImageInputStream, which may cache to a file
+		ImageInputStream in = new MemoryCacheImageInputStream(
+				new ByteArrayInputStream(encoded));
+		try {
+			if (!reader.getOriginatingProvider().canDecodeInput(in)) {
+				Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+				if (!readers.hasNext())
+					throw new IIOException("Unrecognized frame format");
+				reader.dispose();
+				reader = readers.next();
+			}
+			reader.setInput(in, true, true);
+
+			int width = reader.getWidth(0), height = reader.getHeight(0);
+			if (staging == null || staging.getWidth() != width || 
+					staging.getHeight() != height)
+				staging = new BufferedImage(width, height, 
+						BufferedImage.TYPE_3BYTE_BGR);
+			try {
+				param.setDestination(staging);
+				reader.read(0, param);
+			} catch (IllegalArgumentException e) {
+				// The reader cannot write BGR bytes for this frame's color
+				// type, so decode into its own image and draw that
+				Graphics g = staging.getGraphics();
+				g.drawImage(reader.read(0), 0, 0, null);
+				g.dispose();
+			} finally {
+				param.setDestination(null);
+			}
+		} finally {
+			reader.setInput(null);
+			in.close();
+		}
+
+		BufferedImage image = acquire(staging.getWidth(), staging.getHeight());
+		pack(((DataBufferByte) staging.getRaster().getDataBuffer()).getData(),
+				((DataBufferInt) image.getRaster().getDataBuffer()).getData());
+		return image;
+	}
+
+	/**
+	 * Packs B, G, R byte triples into RGB ints
+	 */
+	private static void pack (byte[] bgr, int[] rgb) {
+		for (int i = 0, b = 0; i < rgb.length; i++, b += 3)
+			rgb[i] = (bgr[b + 2] & 0xff) << 16 | (bgr[b + 1] & 0xff) << 8 | 
+				(bgr[b] & 0xff);
+	}
+
+	/**
+	 * Hands an image back for reuse by later frames
+	 */
+	public void release (BufferedImage image) {
+		if (image == null)
+			return;
+		if (pooled.incrementAndGet() > MAX_POOLED) {
+			pooled.decrementAndGet();
+			return;
+		}
+		pool.offer(image);
+	}
+
+	private BufferedImage acquire (int width, int height) {
+		BufferedImage image;
+		while ((image = pool.poll()) != null) {
+			pooled.decrementAndGet();
+			if (image.getWidth() == width && image.getHeight() == height)
+				return image;
+		}
+		return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+	}
+
+	public void dispose () {
+		reader.dispose();
+		pool.clear();
+	}
+}
@@ -0,0 +1,32 @@
+package arTouch.pipeline;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A stereo frame pair as it travels through the pipeline. Each stage
+ * fills in its output and stamps the time it finished.
+ */
+public class FramePair {
+	public final long sequence;
+	public byte[] jpeg0, jpeg1;
+	/**
+	 * The capture times of the two frames, as given by their sources
+	 */
+	public long timestamp0, timestamp1;
+	/**
+	 * The decoded frames, pooled by the decode stage and reused once the
+	 * pair has left the pipeline
+	 */
+	public BufferedImage image0, image1;
+
+	/**
+	 * System.nanoTime at which the pair finished each stage, indexed by 
+	 * the stage number.
+	 */
+	public final long[] stageDone;
+
+	public FramePair (long sequence, int stages) {
+		this.sequence = sequence;
+		stageDone = new long[stages];
+	}
+}
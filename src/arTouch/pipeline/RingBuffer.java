@@ -0,0 +1,181 @@
+package arTouch.pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded lock-free ring buffer connecting exactly one producer 
+ * thread to exactly one consumer thread. What happens when the 
+ * producer finds the buffer full is decided by the DropPolicy.
+ * 
+ * To support dropping the oldest entry, both sides advance the head
+ * with a compare-and-set; the tail is only ever written by the producer.
+ */
+public class RingBuffer<T> {
+	public enum DropPolicy {
+		/**
+		 * The producer waits for the consumer to make room
+		 */
+		BLOCK,
+		/**
+		 * The oldest queued entry is discarded to make room
+		 */
+		DROP_OLDEST,
+		/**
+		 * The entry being offered is discarded
+		 */
+		DROP_NEWEST
+	}
+
+	/**
+	 * How long a blocked thread sleeps between checks
+	 */
+	private static final long PARK_NANOS = 100000;
+
+	private final AtomicReferenceArray<T> slots;
+	private final int capacity;
+	private final DropPolicy policy;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	public RingBuffer (int capacity, DropPolicy policy) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be positive");
+		this.capacity = capacity;
+		this.policy = policy;
+		slots = new AtomicReferenceArray<T>(capacity);
+	}
+
+	/**
+	 * Adds an entry, applying the drop policy if the buffer is full.
+	 * Returns false if the entry itself was dropped or the producer was
+	 * interrupted while blocked.
+	 */
+	public boolean put (T item) {
+		return put(item, -1);
+	}
+
+	/**
+	 * Adds an entry as put does, except that under BLOCK the producer 
+	 * waits at most timeoutNanos (negative for no limit) for room, and
+	 * returns false if there is still none. This lets a producer give up
+	 * when its consumer has gone away.
+	 */
+	public boolean put (T item, long timeoutNanos) {
+		long t = tail.get();
+		long start = System.nanoTime();
+
+		while (t - head.get() >= capacity) {
+			switch (policy) {
+			case DROP_NEWEST:
+				dropped.incrementAndGet();
+				return false;
+			case DROP_OLDEST:
+				long h = head.get();
+				if (t - h >= capacity && head.compareAndSet(h, h + 1))
+					dropped.incrementAndGet();
+				break;
+			default:
+				if (timeoutNanos >= 0 && 
+						System.nanoTime() - start >= timeoutNanos)
+					return false;
+				LockSupport.parkNanos(PARK_NANOS);
+				if (Thread.currentThread().isInterrupted())
+					return false;
+			}
+		}
+
+		slots.set((int) (t % capacity), item);
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Adds an entry if there is room, whatever the drop policy. Returns
+	 * false, without counting a drop, if the buffer is full.
+	 */
+	public boolean offer (T item) {
+		long t = tail.get();
+		if (t - head.get() >= capacity)
+			return false;
+
+		slots.set((int) (t % capacity), item);
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Removes and returns the oldest entry, or null if there is none
+	 */
+	public T poll () {
+		while (true) {
+			long h = head.get();
+			if (h >= tail.get())
+				return null;
+
+			T item = slots.get((int) (h % capacity));
+			if (head.compareAndSet(h, h + 1))
+				return item;
+			// The producer dropped this entry while we were reading it
+		}
+	}
+
+	/**
+	 * Returns the oldest entry without removing it, or null if there is
+	 * none. Under DROP_OLDEST the producer may still discard it before
+	 * the consumer polls.
+	 */
+	public T peek () {
+		while (true) {
+			long h = head.get();
+			if (h >= tail.get())
+				return null;
+
+			T item = slots.get((int) (h % capacity));
+			if (head.get() == h)
+				return item;
+		}
+	}
+
+	/**
+	 * Waits up to timeoutNanos for an entry. Returns null on timeout or
+	 * interruption.
+	 */
+	public T take (long timeoutNanos) {
+		long deadline = System.nanoTime() + timeoutNanos;
+		T item;
+
+		while ((item = poll()) == null) {
+			if (System.nanoTime() >= deadline || 
+					Thread.currentThread().isInterrupted())
+				return null;
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+		return item;
+	}
+
+	public int size () {
+		return (int) Math.max(0, tail.get() - head.get());
+	}
+
+	public boolean isEmpty () {
+		return size() == 0;
+	}
+
+	public int getCapacity () {
+		return capacity;
+	}
+
+	public DropPolicy getPolicy () {
+		return policy;
+	}
+
+	/**
+	 * Returns the number of entries discarded by the drop policy so far
+	 */
+	public long getDropped () {
+		return dropped.get();
+	}
+}
@@ -0,0 +1,71 @@
+package arTouch.pipeline;
+
+import arTouch.metrics.LatencyHistogram;
+
+/**
+ * Latency bookkeeping for one pipeline stage. Service time is the time a
+ * stage spends working on a pair; wait time is how long the pair sat in 
+ * the stage's input buffer, which is where backpressure shows up first.
+ * Service times also go into a histogram, for their percentiles.
+ * 
+ * Only the stage's own thread records; other threads may read.
+ */
+public class StageStats {
+	public final String name;
+	private final LatencyHistogram serviceLatency;
+	private volatile long count;
+	private volatile long totalServiceNanos, maxServiceNanos;
+	private volatile long totalWaitNanos, maxWaitNanos;
+
+	public StageStats (String name) {
+		this(name, new LatencyHistogram(name));
+	}
+
+	public StageStats (String name, LatencyHistogram serviceLatency) {
+		this.name = name;
+		this.serviceLatency = serviceLatency;
+	}
+
+	void record (long waitNanos, long serviceNanos) {
+		serviceLatency.record(serviceNanos);
+		count++;
+		totalWaitNanos += waitNanos;
+		totalServiceNanos += serviceNanos;
+		if (waitNanos > maxWaitNanos)
+			maxWaitNanos = waitNanos;
+		if (serviceNanos > maxServiceNanos)
+			maxServiceNanos = serviceNanos;
+	}
+
+	public long getCount () {
+		return count;
+	}
+
+	public double getAvgServiceMillis () {
+		return count == 0 ? 0 : totalServiceNanos / (count * 1e6);
+	}
+
+	public LatencyHistogram getServiceLatency () {
+		return serviceLatency;
+	}
+
+	public double getMaxServiceMillis () {
+		return maxServiceNanos / 1e6;
+	}
+
+	public double getAvgWaitMillis () {
+		return count == 0 ? 0 : totalWaitNanos / (count * 1e6);
+	}
+
+	public double getMaxWaitMillis () {
+		return maxWaitNanos / 1e6;
+	}
+
+	public String toString () {
+		return String.format("%-10s n=%-6d service avg %6.2fms p99 %7.2fms" +
+				" max %7.2fms | wait avg %6.2fms max %7.2fms", name, count, 
+				getAvgServiceMillis(), serviceLatency.getP99Millis(),
+				getMaxServiceMillis(),
+				getAvgWaitMillis(), getMaxWaitMillis());
+	}
+}
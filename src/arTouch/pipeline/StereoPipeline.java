@@ -0,0 +1,460 @@
+package arTouch.pipeline;
+
+import java.io.IOException;
+
+import arTouch.FrameSource;
+import arTouch.StereoVisionProcessor;
+import arTouch.metrics.Counter;
+import arTouch.metrics.LatencyHistogram;
+import arTouch.metrics.Metrics;
+import arTouch.pipeline.RingBuffer.DropPolicy;
+
+/**
+ * Runs the viewer as a chain of stages -- capture, decode, stereo 
+ * processing and presentation -- each on its own thread and connected
+ * by bounded ring buffers. The camera keeps being read while earlier
+ * pairs are still being decoded or processed.
+ * 
+ * Each camera is read by a thread of its own, so that both are read at
+ * their full frame rate and the two frames of a pair are taken at about
+ * the same moment. The capture stage pairs the frames of the two cameras
+ * by capture timestamp: each frame with the nearest frame of the other
+ * camera, if that is within the pair tolerance. Frames left without a
+ * partner are dropped.
+ * 
+ * Each frame is decoded once, into an image of the decode stage's pool
+ * that both processing and presentation read. The last stage hands the
+ * images back once it is done with them: processing, when there is no
+ * presenter, or presentation.
+ * 
+ * Stage service times are recorded in the processor's metrics, under
+ * the stage names, along with each camera's read times (capture0 and
+ * capture1), the capture time difference of each pair (pairSkew) and the
+ * counters framesProcessed, framesDropped and framesUnpaired.
+ */
+public class StereoPipeline {
+	/**
+	 * Receives each processed pair, e.g. to show it on screen. The pair's
+	 * images are reused once present returns, so a presenter must copy
+	 * whatever it keeps of them.
+	 */
+	public interface Presenter {
+		public void present (FramePair pair);
+	}
+
+	public static final int CAPTURE = 0, DECODE = 1, PROCESS = 2, PRESENT = 3;
+	public static final String[] STAGE_NAMES = 
+		{ "capture", "decode", "process", "present" };
+
+	public static final int DEFAULT_CAPACITY = 2;
+
+	/**
+	 * The default largest difference in capture time of a pair's frames,
+	 * half the frame period of a 30 fps camera
+	 */
+	public static final long DEFAULT_PAIR_TOLERANCE_MILLIS = 16;
+
+	/**
+	 * How long an idle stage waits on its input before checking whether
+	 * the pipeline is shutting down
+	 */
+	private static final long POLL_NANOS = 10000000;
+
+	private final FrameSource source0, source1;
+	private final StereoVisionProcessor stereoProc;
+	private final Presenter presenter;
+	private final RingBuffer<FramePair> decodeQueue, processQueue, presentQueue;
+	private final CameraThread camera0, camera1;
+	private final StageStats[] stats = new StageStats[STAGE_NAMES.length];
+	private final StageThread[] threads = new StageThread[STAGE_NAMES.length];
+	private final FrameDecoder decoder0 = new FrameDecoder();
+	private final FrameDecoder decoder1 = new FrameDecoder();
+	private final Counter framesProcessed, framesDropped, framesUnpaired;
+	private final LatencyHistogram pairSkew;
+	private volatile boolean stop = false;
+	private int reportInterval = 0;
+	private long pairTolerance = DEFAULT_PAIR_TOLERANCE_MILLIS;
+
+	/**
+	 * @param presenter the presentation stage, or null to run without one
+	 */
+	public StereoPipeline (FrameSource source0, FrameSource source1,
+			StereoVisionProcessor stereoProc, Presenter presenter, 
+			int capacity, DropPolicy policy) {
+		this.source0 = source0;
+		this.source1 = source1;
+		this.stereoProc = stereoProc;
+		this.presenter = presenter;
+
+		decodeQueue = new RingBuffer<FramePair>(capacity, policy);
+		processQueue = new RingBuffer<FramePair>(capacity, policy);
+		presentQueue = presenter == null ? null : 
+			new RingBuffer<FramePair>(capacity, policy);
+
+		Metrics metrics = stereoProc.getMetrics();
+		for (int i = 0; i < stats.length; i++)
+			stats[i] = new StageStats(STAGE_NAMES[i], 
+					metrics.getStage(STAGE_NAMES[i]));
+		framesProcessed = metrics.getCounter("framesProcessed");
+		framesDropped = metrics.getCounter("framesDropped");
+		framesUnpaired = metrics.getCounter("framesUnpaired");
+		pairSkew = metrics.getStage("pairSkew");
+
+		camera0 = new CameraThread(0, source0, capacity, policy, 
+				metrics.getStage("capture0"));
+		camera1 = new CameraThread(1, source1, capacity, policy, 
+				metrics.getStage("capture1"));
+	}
+
+	/**
+	 * Prints the stage statistics every interval processed pairs; 0 to
+	 * disable.
+	 */
+	public void setReportInterval (int interval) {
+		reportInterval = interval;
+	}
+
+	/**
+	 * Sets the largest difference in capture time, in milliseconds, of
+	 * two frames that may be paired
+	 */
+	public void setPairTolerance (long millis) {
+		pairTolerance = millis;
+	}
+
+	public void start () {
+		// The camera threads hand their frames to the capture stage
+		threads[CAPTURE] = new CaptureThread();
+		threads[DECODE] = new DecodeThread();
+		threads[PROCESS] = new ProcessThread();
+		if (presenter != null)
+			threads[PRESENT] = new PresentThread();
+
+		camera0.start();
+		camera1.start();
+		for (StageThread t : threads)
+			if (t != null)
+				t.start();
+	}
+
+	/**
+	 * Asks every stage to finish and waits for them. Stages are also
+	 * interrupted, so that none stays blocked on a camera or a buffer.
+	 */
+	public void stop () {
+		stop = true;
+		camera0.interrupt();
+		camera1.interrupt();
+		for (StageThread t : threads)
+			if (t != null)
+				t.interrupt();
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Waits until every stage has finished, e.g. at the end of a replay
+	 */
+	public void join () throws InterruptedException {
+		camera0.join();
+		camera1.join();
+		for (StageThread t : threads)
+			if (t != null)
+				t.join();
+	}
+
+	public StageStats getStageStats (int stage) {
+		return stats[stage];
+	}
+
+	/**
+	 * Returns the number of pairs discarded by the drop policy across
+	 * all buffers, counting each camera's dropped frames as half a pair
+	 */
+	public long getDropped () {
+		return decodeQueue.getDropped() + processQueue.getDropped() + 
+			(presentQueue == null ? 0 : presentQueue.getDropped()) +
+			(camera0.frames.getDropped() + camera1.frames.getDropped()) / 2;
+	}
+
+	/**
+	 * Returns the number of frames dropped for want of a frame of the
+	 * other camera within the pair tolerance
+	 */
+	public long getUnpaired () {
+		return framesUnpaired.getValue();
+	}
+
+	public void printStats () {
+		for (StageThread t : threads)
+			if (t != null)
+				System.out.println(stats[t.stage]);
+		System.out.printf("queued decode:%d process:%d present:%d" + 
+				" dropped:%d unpaired:%d\n", decodeQueue.size(), 
+				processQueue.size(), presentQueue == null ? 0 : 
+				presentQueue.size(), getDropped(), getUnpaired());
+	}
+
+	/**
+	 * A pipeline stage. Takes pairs from its input, works on them, and
+	 * hands them to its output, until the upstream stage has finished and
+	 * the input is drained.
+	 */
+	private abstract class StageThread extends Thread {
+		final int stage;
+		final RingBuffer<FramePair> in, out;
+		volatile boolean finished = false;
+
+		StageThread (int stage, RingBuffer<FramePair> in, 
+				RingBuffer<FramePair> out) {
+			super(STAGE_NAMES[stage].substring(0, 1).toUpperCase() + 
+					STAGE_NAMES[stage].substring(1) + " Thread");
+			this.stage = stage;
+			this.in = in;
+			this.out = out;
+		}
+
+		abstract void process (FramePair pair);
+
+		public void run () {
+			try {
+				runStage();
+			} finally {
+				finished = true;
+			}
+		}
+
+		void runStage () {
+			StageThread upstream = threads[stage - 1];
+
+			while (!stop) {
+				FramePair pair = in.take(POLL_NANOS);
+				if (pair == null) {
+					if (!upstream.isAlive() && in.isEmpty())
+						break;
+					continue;
+				}
+
+				long start = System.nanoTime();
+				process(pair);
+				long end = System.nanoTime();
+
+				pair.stageDone[stage] = end;
+				stats[stage].record(start - pair.stageDone[stage - 1], 
+						end - start);
+
+				if (out != null)
+					handOn(out, pair, threads[stage + 1]);
+			}
+		}
+	}
+
+	/**
+	 * Puts a pair into a stage's output. Under BLOCK it only waits for
+	 * room while the pipeline is running and the consumer has not
+	 * finished; returns false if the pair was not added.
+	 */
+	private <T> boolean handOn (RingBuffer<T> out, T item, 
+			StageThread consumer) {
+		while (!out.put(item, POLL_NANOS)) {
+			if (out.getPolicy() != DropPolicy.BLOCK || stop || 
+					consumer.finished || Thread.currentThread().isInterrupted())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A frame read by a camera thread
+	 */
+	private static class Frame {
+		byte[] jpeg;
+		long timestamp;
+		/**
+		 * System.nanoTime when the read started and finished
+		 */
+		long readStart, readEnd;
+	}
+
+	/**
+	 * Reads one camera as fast as it delivers frames, until the source
+	 * runs out, the pipeline stops or the capture stage has finished
+	 */
+	private class CameraThread extends Thread {
+		final FrameSource source;
+		final RingBuffer<Frame> frames;
+		final LatencyHistogram readLatency;
+
+		CameraThread (int camera, FrameSource source, int capacity, 
+				DropPolicy policy, LatencyHistogram readLatency) {
+			super("Camera " + camera + " Thread");
+			this.source = source;
+			this.readLatency = readLatency;
+			frames = new RingBuffer<Frame>(capacity, policy);
+		}
+
+		public void run () {
+			try {
+				StageThread capture = threads[CAPTURE];
+				while (!stop && !capture.finished) {
+					Frame frame = new Frame();
+					frame.readStart = System.nanoTime();
+					frame.jpeg = source.getFrame();
+					if (frame.jpeg == null)
+						break;
+					frame.timestamp = source.getFrameTimestamp();
+					frame.readEnd = readLatency.recordSince(frame.readStart);
+					if (!handOn(frames, frame, capture))
+						break;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("Failed to capture image");
+			}
+		}
+
+		/**
+		 * Waits for the next frame. Returns null once the camera has
+		 * finished and every frame has been taken.
+		 */
+		Frame next () {
+			while (!stop) {
+				Frame frame = frames.take(POLL_NANOS);
+				if (frame != null)
+					return frame;
+				if (!isAlive() && frames.isEmpty())
+					break;
+			}
+			return null;
+		}
+
+		/**
+		 * Returns whether this camera's next frame, if already read, is
+		 * nearer in time to other than current is
+		 */
+		boolean hasNearer (Frame current, Frame other) {
+			Frame next = frames.peek();
+			return next != null && Math.abs(next.timestamp - other.timestamp) <
+				Math.abs(current.timestamp - other.timestamp);
+		}
+	}
+
+	/**
+	 * Pairs the frames of the two camera threads. For the capture stage,
+	 * service time is the longer of the two frames' reads and wait time
+	 * how long the pair waited after its later frame was read.
+	 *
+	 * Pairing ends once either camera runs out. The other camera may
+	 * still be reading, e.g. when a replay's cameras have different
+	 * frame counts; it stops at its next frame rather than wait for room
+	 * that will not come, and the frames it has buffered are dropped.
+	 */
+	private class CaptureThread extends StageThread {
+		CaptureThread () {
+			super(CAPTURE, null, decodeQueue);
+		}
+
+		void process (FramePair pair) {
+		}
+
+		void runStage () {
+			long sequence = 0;
+			Frame frame0 = camera0.next(), frame1 = camera1.next();
+
+			while (frame0 != null && frame1 != null) {
+				long skew = frame0.timestamp - frame1.timestamp;
+
+				// Drop the earlier frame if its camera already has one
+				// nearer to the other frame, or it is too early to pair
+				if (skew < 0 && (-skew > pairTolerance || 
+						camera0.hasNearer(frame0, frame1))) {
+					framesUnpaired.increment();
+					frame0 = camera0.next();
+					continue;
+				}
+				if (skew > 0 && (skew > pairTolerance || 
+						camera1.hasNearer(frame1, frame0))) {
+					framesUnpaired.increment();
+					frame1 = camera1.next();
+					continue;
+				}
+
+				FramePair pair = new FramePair(sequence++, STAGE_NAMES.length);
+				pair.jpeg0 = frame0.jpeg;
+				pair.jpeg1 = frame1.jpeg;
+				pair.timestamp0 = frame0.timestamp;
+				pair.timestamp1 = frame1.timestamp;
+				pairSkew.record(Math.abs(skew) * 1000000);
+
+				long end = System.nanoTime();
+				pair.stageDone[CAPTURE] = end;
+				stats[CAPTURE].record(
+						end - Math.max(frame0.readEnd, frame1.readEnd),
+						Math.max(frame0.readEnd - frame0.readStart, 
+								frame1.readEnd - frame1.readStart));
+				if (!handOn(out, pair, threads[DECODE]))
+					break;
+
+				frame0 = camera0.next();
+				frame1 = camera1.next();
+			}
+		}
+	}
+
+	private class DecodeThread extends StageThread {
+		DecodeThread () {
+			super(DECODE, decodeQueue, processQueue);
+		}
+
+		void process (FramePair pair) {
+			try {
+				pair.image0 = decoder0.decode(pair.jpeg0);
+				pair.image1 = decoder1.decode(pair.jpeg1);
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("Failed to decode image");
+			}
+		}
+	}
+
+	private class ProcessThread extends StageThread {
+		ProcessThread () {
+			super(PROCESS, processQueue, presentQueue);
+		}
+
+		void process (FramePair pair) {
+			if (pair.image0 != null && pair.image1 != null) {
+				stereoProc.processImagePair(pair.image0, pair.image1, 
+						pair.timestamp0);
+				framesProcessed.increment();
+			}
+			framesDropped.set(getDropped());
+			if (presenter == null)
+				release(pair);
+
+			if (reportInterval > 0 && stats[PROCESS].getCount() > 0 &&
+					stats[PROCESS].getCount() % reportInterval == 0)
+				printStats();
+		}
+	}
+
+	private class PresentThread extends StageThread {
+		PresentThread () {
+			super(PRESENT, presentQueue, null);
+		}
+
+		void process (FramePair pair) {
+			presenter.present(pair);
+			release(pair);
+		}
+	}
+
+	private void release (FramePair pair) {
+		decoder0.release(pair.image0);
+		decoder1.release(pair.image1);
+		pair.image0 = pair.image1 = null;
+	}
+}
@@ -0,0 +1,23 @@
+package arTouch.previews;
+
+import java.awt.image.Raster;
+import java.util.List;
+
+import arTouch.Preview;
+import arTouch.Clusterer.Cluster;
+
+/**
+ * A preview for machines without a display. Wants no frames and draws
+ * nothing.
+ */
+public class HeadlessPreview implements Preview {
+	public boolean wantsFrame (int side) {
+		return false;
+	}
+
+	public void showClusters (int side, Raster base, List<Cluster> clusters) {
+	}
+
+	public void showImage (int side, int[] argb, int width, int height) {
+	}
+}
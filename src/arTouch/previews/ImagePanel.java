@@ -0,0 +1,69 @@
+package arTouch.previews;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+import javax.swing.JComponent;
+
+/**
+ * A double buffered image component. A drawing thread of its own draws
+ * into the back image while Swing draws the front one; flip swaps them.
+ * Swing never sees an image the drawing thread passed in, only its own
+ * copies, so those can be reused as soon as showImage returns.
+ *
+ * Only one thread at a time may draw, but it need not be the event
+ * dispatch thread.
+ */
+public class ImagePanel extends JComponent {
+	private static final long serialVersionUID = 1L;
+
+	private BufferedImage front, back;
+
+	/**
+	 * Returns the back image, at the given size
+	 */
+	public BufferedImage getBackImage (int width, int height) {
+		if (back == null || back.getWidth() != width ||
+				back.getHeight() != height)
+			back = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		return back;
+	}
+
+	/**
+	 * Makes the back image the one shown and schedules a repaint
+	 */
+	public void flip () {
+		synchronized (this) {
+			BufferedImage shown = front;
+			front = back;
+			back = shown;
+		}
+		repaint();
+	}
+
+	/**
+	 * Copies an image into the back image and shows it
+	 */
+	public void showImage (BufferedImage image) {
+		BufferedImage out = getBackImage(image.getWidth(), image.getHeight());
+		if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+			int[] in = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+			System.arraycopy(in, 0,
+					((DataBufferInt) out.getRaster().getDataBuffer()).getData(), 0,
+					image.getWidth() * image.getHeight());
+		} else {
+			Graphics g = out.getGraphics();
+			g.drawImage(image, 0, 0, null);
+			g.dispose();
+		}
+		flip();
+	}
+
+	protected void paintComponent (Graphics g) {
+		synchronized (this) {
+			if (front != null)
+				g.drawImage(front, 0, 0, null);
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package arTouch.previews;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.swing.JComponent;
+
+import arTouch.PackedPixels;
+import arTouch.Preview;
+import arTouch.Clusterer.Cluster;
+
+/**
+ * Shows previews in two Swing components, drawn on a render thread of
+ * their own so that processing never waits on drawing or on Swing.
+ *
+ * Each side accepts at most maxFps frames a second; frames offered
+ * sooner are dropped without being copied. An accepted frame's pixels are
+ * copied into a staging buffer and the render thread is woken. If the
+ * render thread falls behind, a newer frame replaces the one waiting.
+ * The render thread paints into the back image of the side's ImagePanel
+ * and then swaps it with the front image, which is what Swing draws.
+ * All buffers and images are reused from frame to frame.
+ */
+public class SwingPreview implements Preview {
+	public static final double DEFAULT_MAX_FPS = 15;
+
+	private static final int CLUSTER_COLOR = 0xffff0000;
+
+	/**
+	 * How long the idle render thread waits before checking whether it
+	 * has been stopped
+	 */
+	private static final long POLL_MILLIS = 100;
+
+	private final long minIntervalNanos;
+	private final Side[] sides = { new Side(), new Side() };
+	private final Object lock = new Object();
+	private Thread renderThread;
+	private volatile boolean stop = false;
+	private long framesShown = 0, framesDropped = 0;
+
+	/**
+	 * A side's staged frame and the component it is shown in. The staged
+	 * fields are guarded by lock.
+	 */
+	private static class Side {
+		final ImagePanel panel = new ImagePanel();
+		int[] staged = new int[0], working = new int[0];
+		int width, height;
+		List<Cluster> clusters;
+		boolean pending = false;
+		long lastAccepted;
+	}
+
+	/**
+	 * @param maxFps the most frames per second shown on each side
+	 */
+	public SwingPreview (int width, int height, double maxFps) {
+		if (maxFps <= 0)
+			throw new IllegalArgumentException("Frame rate must be positive");
+		minIntervalNanos = (long) (1e9 / maxFps);
+
+		long now = System.nanoTime();
+		for (Side side : sides) {
+			side.panel.setPreferredSize(new Dimension(width, height));
+			side.lastAccepted = now - minIntervalNanos;
+		}
+	}
+
+	/**
+	 * Returns the component showing the given side
+	 */
+	public JComponent getComponent (int side) {
+		return sides[side].panel;
+	}
+
+	public void start () {
+		renderThread = new Thread("Preview Render Thread") {
+			public void run () {
+				render();
+			}
+		};
+		renderThread.setDaemon(true);
+		renderThread.start();
+	}
+
+	public void stop () {
+		stop = true;
+		synchronized (lock) {
+			lock.notifyAll();
+		}
+		try {
+			if (renderThread != null)
+				renderThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public long getFramesShown () {
+		synchronized (lock) {
+			return framesShown;
+		}
+	}
+
+	/**
+	 * Returns the number of frames dropped by the frame rate cap or
+	 * replaced by a newer one before they were drawn
+	 */
+	public long getFramesDropped () {
+		synchronized (lock) {
+			return framesDropped;
+		}
+	}
+
+	public boolean wantsFrame (int side) {
+		synchronized (lock) {
+			return System.nanoTime() - sides[side].lastAccepted >=
+				minIntervalNanos;
+		}
+	}
+
+	public void showClusters (int side, Raster base, List<Cluster> clusters) {
+		synchronized (lock) {
+			Side s = sides[side];
+			if (!accept(s))
+				return;
+			s.staged = PackedPixels.readRaster(base, s.staged);
+			stage(s, base.getWidth(), base.getHeight(), clusters);
+		}
+	}
+
+	public void showImage (int side, int[] argb, int width, int height) {
+		synchronized (lock) {
+			Side s = sides[side];
+			if (!accept(s))
+				return;
+			if (s.staged.length != width * height)
+				s.staged = new int[width * height];
+			System.arraycopy(argb, 0, s.staged, 0, width * height);
+			stage(s, width, height, null);
+		}
+	}
+
+	/**
+	 * Applies the frame rate cap to a frame offered to a side
+	 */
+	private boolean accept (Side s) {
+		long now = System.nanoTime();
+		if (stop || now - s.lastAccepted < minIntervalNanos) {
+			framesDropped++;
+			return false;
+		}
+		s.lastAccepted = now;
+		return true;
+	}
+
+	private void stage (Side s, int width, int height, List<Cluster> clusters) {
+		if (s.pending)
+			framesDropped++;
+		s.width = width;
+		s.height = height;
+		s.clusters = clusters;
+		s.pending = true;
+		lock.notifyAll();
+	}
+
+	private void render () {
+		while (!stop) {
+			Side s = null;
+			int width, height;
+			List<Cluster> clusters;
+
+			synchronized (lock) {
+				for (Side side : sides)
+					if (side.pending)
+						s = side;
+				if (s == null) {
+					try {
+						lock.wait(POLL_MILLIS);
+					} catch (InterruptedException e) {
+						return;
+					}
+					continue;
+				}
+
+				// Take the staged frame, leaving the other buffer to stage
+				// the next one in
+				int[] frame = s.staged;
+				s.staged = s.working;
+				s.working = frame;
+				width = s.width;
+				height = s.height;
+				clusters = s.clusters;
+				s.pending = false;
+				framesShown++;
+			}
+
+			BufferedImage back = s.panel.getBackImage(width, height);
+			int[] out = ((DataBufferInt) back.getRaster().getDataBuffer()).getData();
+			System.arraycopy(s.working, 0, out, 0, width * height);
+			if (clusters != null)
+				paintClusters(clusters, out, width, height);
+			s.panel.flip();
+		}
+	}
+
+	private static void paintClusters (List<Cluster> clusters, int[] out,
+			int width, int height) {
+		for (Cluster cluster : clusters) {
+			for (int run = 0; run < cluster.getRunCount(); run++) {
+				int y = cluster.getRunY(run);
+				int start = Math.max(cluster.getRunStartX(run), 0);
+				int end = Math.min(cluster.getRunEndX(run), width);
+				if (y < 0 || y >= height || start >= end)
+					continue;
+				Arrays.fill(out, y * width + start, y * width + end, CLUSTER_COLOR);
+			}
+		}
+	}
+}
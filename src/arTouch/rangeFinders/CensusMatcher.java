@@ -0,0 +1,179 @@
+package arTouch.rangeFinders;
+
+import arTouch.CalibrationSnapshot;
+import arTouch.CameraCalibrator;
+import arTouch.Clusterer;
+import arTouch.ComponentLabeler;
+import arTouch.PackedPixels;
+import arTouch.Preview;
+import arTouch.RangeFinder;
+import arTouch.Clusterer.CalibratedRowAccess;
+import arTouch.Clusterer.Cluster;
+import arTouch.Clusterer.RasterRowAccess;
+import arTouch.previews.HeadlessPreview;
+
+import java.awt.image.Raster;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the shift of each cluster of hot pixels like ClusterMatcher, but
+ * compares census transforms (see CensusTransform) of the two views
+ * instead of colors. The cost of a shift is the mean number of differing
+ * census bits over the cluster's pixels.
+ *
+ * Only the calibrator's image offset is used. Camera 2's census is taken
+ * from its raw image, so the match does not depend on the global or per
+ * pixel color offsets being right.
+ */
+public class CensusMatcher implements RangeFinder {
+	/**
+	 * The fraction of a cluster that must overlap camera 2's image for a
+	 * shift to be considered
+	 */
+	public static final double MIN_OVERLAP = 0.5;
+
+	CameraCalibrator cameraCalibrator;
+	int height, width;
+	int offsetX, offsetY;
+	ArrayList<Cluster> clusters;
+	RasterRowAccess rasterRowAccess = new Clusterer.RasterRowAccess();
+	CalibratedRowAccess calibratedRowAccess = new Clusterer.CalibratedRowAccess();
+	ComponentLabeler labeler = new ComponentLabeler();
+	Preview preview = new HeadlessPreview();
+	CensusTransform census0 = new CensusTransform();
+	CensusTransform census1 = new CensusTransform();
+	int[] packed1;
+	private long[] costs = new long[0];
+	private int[] counts = new int[0];
+	private long pixelsCompared;
+
+	public CensusMatcher (CameraCalibrator cameraCalibrator) {
+		this.cameraCalibrator = cameraCalibrator;
+	}
+
+	/**
+	 * Sets where the hot clusters of each findRange are shown
+	 */
+	public void setPreview (Preview preview) {
+		this.preview = preview;
+	}
+
+	public void findRange (Raster raster0, Raster raster1) {
+		setRasters(raster0, raster1);
+
+		clusters = labeler.findClusters(rasterRowAccess, calibratedRowAccess,
+				width, height, ClusterMatcher.MIN_DIFF_THRESHOLD,
+				ClusterMatcher.MIN_CLUSTER_THRESHOLD);
+		preview.showClusters(Preview.LEFT, raster0, clusters);
+		pixelsCompared = 0;
+		long timeStart = System.currentTimeMillis();
+
+		int[] shifts = findShifts(clusters);
+		for (int i = 0; i < shifts.length; i++)
+			System.out.printf("Patch Size %d. Best Offset %d.\n",
+					clusters.get(i).size(), shifts[i]);
+
+		System.out.println("-------------- Census Compared " + pixelsCompared +
+				" pixels Time: " + (System.currentTimeMillis() - timeStart));
+	}
+
+	/**
+	 * Sets the image pair that subsequent shift searches are run against.
+	 * The calibrator must already have been given the same pair.
+	 */
+	public void setRasters (Raster raster0, Raster raster1) {
+		assert (raster0.getBounds().equals(raster1.getBounds()));
+		width = raster0.getWidth();
+		height = raster0.getHeight();
+
+		rasterRowAccess.raster = raster0;
+		calibratedRowAccess.cameraCalibrator = cameraCalibrator;
+
+		CalibrationSnapshot calibration = cameraCalibrator.getCalibration();
+		offsetX = calibration.offsetX;
+		offsetY = calibration.offsetY;
+
+		census0.setImage(cameraCalibrator.getPackedImage0(), width, height);
+		packed1 = PackedPixels.readRaster(raster1, packed1);
+		census1.setImage(packed1, width, height);
+	}
+
+	/**
+	 * Returns the number of pixel pairs compared since the last findRange
+	 */
+	public long getPixelsCompared () {
+		return pixelsCompared;
+	}
+
+	/**
+	 * Returns the best shift of each cluster, in ClusterMatcher's terms:
+	 * the camera 1 pixel x, y is matched with camera 2's equivalent of
+	 * x + shift, y.
+	 */
+	public int[] findShifts (List<Cluster> clusters) {
+		int[] shifts = new int[clusters.size()];
+		for (int i = 0; i < shifts.length; i++)
+			shifts[i] = findShift(clusters.get(i));
+		return shifts;
+	}
+
+	/**
+	 * Tries every shift in [-width, width) and returns the one with the
+	 * lowest mean census distance, the smaller one on ties, or 0 if no
+	 * shift overlaps enough of camera 2's image.
+	 */
+	public int findShift (Cluster cluster) {
+		int minShift = -width, shiftCount = 2 * width;
+		if (costs.length < shiftCount + 1) {
+			costs = new long[shiftCount + 1];
+			counts = new int[shiftCount + 1];
+		}
+		// counts holds the changes in the number of pixels compared from
+		// one shift to the next until the totals are summed up below
+		for (int s = 0; s <= shiftCount; s++) {
+			costs[s] = 0;
+			counts[s] = 0;
+		}
+
+		for (int run = 0; run < cluster.getRunCount(); run++) {
+			int y = cluster.getRunY(run), y1 = y + offsetY;
+			if (y1 < 0 || y1 >= height)
+				continue;
+			census1.transformRow(y1);
+			long[] words1 = census1.getWords();
+
+			// Each pixel is compared at every shift that keeps camera 2's
+			// pixel x + offsetX + shift inside the image
+			int row1 = y1 * width + offsetX + minShift;
+			for (int x = cluster.getRunStartX(run);
+					x < cluster.getRunEndX(run); x++) {
+				int first = Math.max(0, -offsetX - minShift - x);
+				int last = Math.min(shiftCount, width - offsetX - minShift - x);
+				if (first >= last)
+					continue;
+
+				long word = census0.transform(x, y);
+				int row2 = row1 + x;
+				for (int s = first; s < last; s++)
+					costs[s] += Long.bitCount(word ^ words1[row2 + s]);
+				counts[first]++;
+				counts[last]--;
+			}
+		}
+
+		int best = -1, count = 0;
+		int minCount = (int) Math.ceil(cluster.size() * MIN_OVERLAP);
+		for (int s = 0; s < shiftCount; s++) {
+			count += counts[s];
+			counts[s] = count;
+			pixelsCompared += count;
+			if (count == 0 || count < minCount)
+				continue;
+			// Compares costs[s] / counts[s] < costs[best] / counts[best]
+			if (best < 0 || costs[s] * counts[best] < costs[best] * counts[s])
+				best = s;
+		}
+		return best < 0 ? 0 : minShift + best;
+	}
+}
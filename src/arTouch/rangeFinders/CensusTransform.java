@@ -0,0 +1,100 @@
+package arTouch.rangeFinders;
+
+import arTouch.PackedPixels;
+
+/**
+ * The census transform of an image. Each pixel becomes a 64 bit word with
+ * one bit per pixel of the 9x7 window around it, set where that pixel is
+ * darker than the center. A word only records the order of brightnesses,
+ * so it does not change with the gain, brightness and color balance
+ * differences between two cameras. Two pixels are compared by the number
+ * of bits in which their words differ.
+ *
+ * Rows are transformed the first time they are asked for in each frame.
+ * Windows reaching past the edge of the image repeat the edge pixels.
+ */
+public class CensusTransform {
+	public static final int WINDOW_WIDTH = 9, WINDOW_HEIGHT = 7;
+
+	private int width, height, paddedWidth;
+	private int[] luma = new int[0];
+	private long[] words = new long[0];
+	private int[] rowFrame = new int[0];
+	private int frame;
+
+	/**
+	 * Starts a new frame from a row-major packed ARGB image. Invalid
+	 * pixels count as black.
+	 */
+	public void setImage (int[] argb, int width, int height) {
+		this.width = width;
+		this.height = height;
+		int padX = WINDOW_WIDTH / 2, padY = WINDOW_HEIGHT / 2;
+		paddedWidth = width + 2 * padX;
+
+		int paddedSize = paddedWidth * (height + 2 * padY);
+		if (luma.length < paddedSize)
+			luma = new int[paddedSize];
+		if (rowFrame.length < height) {
+			rowFrame = new int[height];
+			frame = 0;
+		}
+		frame++;
+
+		for (int py = 0; py < height + 2 * padY; py++) {
+			int y = Math.min(Math.max(py - padY, 0), height - 1);
+			int row = py * paddedWidth;
+			for (int x = 0; x < width; x++) {
+				int rgb = argb[y * width + x];
+				luma[row + padX + x] = PackedPixels.isValid(rgb) ?
+						(77 * PackedPixels.red(rgb) + 150 * PackedPixels.green(rgb) +
+								29 * PackedPixels.blue(rgb)) >> 8 : 0;
+			}
+			for (int x = 0; x < padX; x++) {
+				luma[row + x] = luma[row + padX];
+				luma[row + padX + width + x] = luma[row + padX + width - 1];
+			}
+		}
+	}
+
+	/**
+	 * Returns the words of the current frame, row-major. Only rows passed
+	 * to transformRow since setImage are filled in.
+	 */
+	public long[] getWords () {
+		return words;
+	}
+
+	/**
+	 * Fills in the words of row y, unless already done this frame
+	 */
+	public void transformRow (int y) {
+		if (rowFrame[y] == frame)
+			return;
+		rowFrame[y] = frame;
+		if (words.length < width * height)
+			words = new long[width * height];
+
+		for (int x = 0, i = y * width; x < width; x++, i++)
+			words[i] = transform(x, y);
+	}
+
+	/**
+	 * Computes the word of pixel x, y without storing it, for callers that
+	 * only need a few pixels of a row
+	 */
+	public long transform (int x, int y) {
+		// Window row dy starts at luma[top + dy * paddedWidth]
+		int top = y * paddedWidth + x;
+		int c = luma[top + (WINDOW_HEIGHT / 2) * paddedWidth + WINDOW_WIDTH / 2];
+
+		// The center itself is never darker, so its bit is always 0
+		long bits = 0;
+		for (int dy = 0; dy < WINDOW_HEIGHT; dy++) {
+			int row = top + dy * paddedWidth;
+			for (int dx = 0; dx < WINDOW_WIDTH; dx++)
+				bits = bits << 1 | (luma[row + dx] - c) >>> 31;
+		}
+		return bits;
+	}
+}
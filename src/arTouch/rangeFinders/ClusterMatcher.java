@@ -1,14 +1,23 @@
 package arTouch.rangeFinders;
 
 import arTouch.CameraCalibrator;
+import arTouch.ComponentLabeler;
+import arTouch.DiffKernel;
+import arTouch.ImagePyramid;
+import arTouch.Preview;
 import arTouch.Clusterer;
 import arTouch.RangeFinder;
-import arTouch.Clusterer.CalibratedPixelAccess;
+import arTouch.Clusterer.CalibratedRowAccess;
 import arTouch.Clusterer.Cluster;
-import arTouch.Clusterer.RasterPixelAccess;
+import arTouch.Clusterer.RasterRowAccess;
+import arTouch.previews.HeadlessPreview;
+import arTouch.touch.TouchEvent;
 
 import java.awt.image.Raster;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 /**
  * The cluster matcher attempts to find range in the following way:
@@ -22,13 +31,38 @@ import java.util.ArrayList;
  * 
  */
 public class ClusterMatcher implements RangeFinder {
+	/**
+	 * How the best shift of each cluster is searched for
+	 */
+	public enum SearchMode {
+		/**
+		 * Every shift on a reduced pyramid level, then refined a level at
+		 * a time around the best shift so far (see findQuickShift)
+		 */
+		QUICK,
+		/**
+		 * Every shift, most of them ruled out by lower bounds taken from
+		 * per-row prefix sums (see ShiftCostEngine)
+		 */
+		EXHAUSTIVE
+	}
+
 	CameraCalibrator cameraCalibrator;
 	int height, width;
 	Raster raster0, raster1;
 	ArrayList<Cluster> clusters;
 	int diffCallCount = 0;
-	RasterPixelAccess rasterPixelAccess = new Clusterer.RasterPixelAccess();
-	CalibratedPixelAccess calibratedPixelAccess = new Clusterer.CalibratedPixelAccess();
+	RasterRowAccess rasterRowAccess = new Clusterer.RasterRowAccess();
+	CalibratedRowAccess calibratedRowAccess = new Clusterer.CalibratedRowAccess();
+	int[] packed0, calibrated1;
+	ComponentLabeler labeler = new ComponentLabeler();
+	Preview preview = new HeadlessPreview();
+	ShiftCostEngine costEngine = new ShiftCostEngine();
+	DiffKernel kernel = DiffKernel.get();
+	private SearchMode searchMode = SearchMode.EXHAUSTIVE;
+	ImagePyramid pyramid0 = new ImagePyramid();
+	ImagePyramid pyramid1 = new ImagePyramid();
+	private boolean pyramidsStale = true;
 
 	/**
 	 * The number of contiguous pixels required to form an acceptable cluster
@@ -40,11 +74,73 @@ public class ClusterMatcher implements RangeFinder {
 	 */
 	public static final int MIN_DIFF_THRESHOLD = 50;
 
+	/**
+	 * The fewest pixels a cluster must cover on a pyramid level for the
+	 * quick search to start there
+	 */
+	public static final int MIN_LEVEL_PIXELS = 32;
+
+	/**
+	 * How far either side of twice a level's best shift the next level
+	 * down searches
+	 */
+	public static final int REFINE_RADIUS = 2;
+
 	public ClusterMatcher (CameraCalibrator cameraCalibrator) {
 		this.cameraCalibrator = cameraCalibrator;
 	}
 
+	public void setSearchMode (SearchMode mode) {
+		searchMode = mode;
+	}
+
+	public SearchMode getSearchMode () {
+		return searchMode;
+	}
+
+	/**
+	 * Sets where the hot clusters of each findRange are shown
+	 */
+	public void setPreview (Preview preview) {
+		this.preview = preview;
+	}
+
 	public void findRange(Raster raster0, Raster raster1) {
+		setRasters(raster0, raster1);
+
+		clusters = labeler.findClusters(rasterRowAccess, calibratedRowAccess,
+				width, height, MIN_DIFF_THRESHOLD, MIN_CLUSTER_THRESHOLD);
+		preview.showClusters(Preview.LEFT, raster0, clusters);
+		diffCallCount = 0;
+		costEngine.resetCounters();
+		long timeStart = System.currentTimeMillis();
+
+		if (searchMode == SearchMode.EXHAUSTIVE) {
+			int[] shifts = findExhaustiveShifts(clusters);
+			for (int i = 0; i < shifts.length; i++)
+				System.out.printf("Patch Size %d. Best Offset %d.\n",
+						clusters.get(i).size(), shifts[i]);
+
+			System.out.println("-------------- Shift Costs Built From " + 
+					costEngine.getPixelsDiffed() + " pixel diffs and " +
+					costEngine.getSegmentsBounded() + " bounds Time: " + 
+					(System.currentTimeMillis() - timeStart));
+		} else {
+			for (Cluster cluster : clusters)
+				System.out.printf("Patch Size %d. Best Offset %d.\n",
+						cluster.size(), findQuickShift(cluster));
+
+			System.out.println("-------------- Shift Diff Called " + diffCallCount
+					+ " times Time: " + (System.currentTimeMillis() - timeStart));
+		}
+	}
+
+	/**
+	 * Sets the image pair that subsequent shift searches are run against.
+	 * The calibrator must already have been given the same pair; its
+	 * packed and remapped images are what the searches index into.
+	 */
+	public void setRasters (Raster raster0, Raster raster1) {
 		this.raster0 = raster0;
 		this.raster1 = raster1;
 
@@ -52,114 +148,105 @@ public class ClusterMatcher implements RangeFinder {
 		width = raster0.getWidth();
 		height = raster0.getHeight();
 
-		rasterPixelAccess.raster = raster0;
-		calibratedPixelAccess.cameraCalibrator = this.cameraCalibrator;
-		
-		clusters = Clusterer.findClusters(rasterPixelAccess, calibratedPixelAccess,
-				width, height, MIN_DIFF_THRESHOLD, MIN_CLUSTER_THRESHOLD);
-		Clusterer.displayClusters(clusters, width, height, raster0, true);
-		diffCallCount = 0;
-		long timeStart = System.currentTimeMillis();
-		for (Cluster cluster : clusters)
-			findQuickShift(cluster);
+		rasterRowAccess.raster = raster0;
+		calibratedRowAccess.cameraCalibrator = this.cameraCalibrator;
 
-		System.out.println("-------------- Shift Diff Called " + diffCallCount
-				+ " times Time: " + (System.currentTimeMillis() - timeStart));
+		packed0 = cameraCalibrator.getPackedImage0();
+		calibrated1 = cameraCalibrator.getCalibratedImage();
+		costEngine.setImages(packed0, calibrated1, width, height);
+		pyramidsStale = true;
 	}
 
 	/**
-	 * Attempts to quickly find the best shift for a cluster by 
-	 * shifting the cluster over by large amounts first followed 
-	 * by smaller amounts.
+	 * Returns the lowest cost shift of each cluster over every possible
+	 * shift, as getShiftDiff would rank them.
 	 */
-	private void findQuickShift (Cluster cluster) {
-		int shiftWidth = cluster.getWidth() / 4;
-		int bestShift = 0;
-		int leftEdge = -width;
-		int rightEdge = width;
-
-		while (shiftWidth > 0) {
-			//int start = diffCallCount;
-			bestShift = skipShift(bestShift, leftEdge, rightEdge, shiftWidth, 
-					cluster);
-			//System.out.printf("Checking Shift - Mid: %d L: %d R: %d Width: %d" +
-			//		" Call Count: %d\n",
-			//		bestShift, leftEdge, rightEdge, shiftWidth, diffCallCount - start);
-			leftEdge = bestShift - shiftWidth;
-			rightEdge = bestShift + shiftWidth;
-			shiftWidth = shiftWidth / 2;
-		}
-		
-		System.out.printf("Patch Size %d. Best Offset %d.\n",
-				cluster.size(), bestShift);
+	public int[] findExhaustiveShifts (List<Cluster> clusters) {
+		return costEngine.findBestShifts(clusters, -width, width - 1);
 	}
 
-	private int skipShift (int startX, int leftEdge, int rightEdge,
-			int shiftAmount, Cluster cluster) {
-		int currShift = startX;
-		int bestShift = startX;
-		double bestDiff = Double.MAX_VALUE;
-
-		// Shift Left
-		while (currShift > leftEdge) {
-			double diff = getShiftDiff(cluster, currShift);
-			//double diff = getMonteCarloShiftDiff(cluster, currShift);
-
-			if (diff < bestDiff) {
-				bestDiff = diff;
-				bestShift = currShift;
-			}
-
-			currShift -= shiftAmount;
+	/**
+	 * Finds the best shift of a cluster coarse to fine. Every shift is
+	 * tried on the highest pyramid level the cluster still covers
+	 * MIN_LEVEL_PIXELS of; each level below then only tries the shifts
+	 * within REFINE_RADIUS of twice the best shift of the level above.
+	 */
+	public int findQuickShift (Cluster cluster) {
+		if (pyramidsStale) {
+			pyramid0.build(packed0, width, height, ImagePyramid.MAX_LEVEL);
+			pyramid1.build(calibrated1, width, height, ImagePyramid.MAX_LEVEL);
+			pyramidsStale = false;
 		}
 
-		currShift = startX + shiftAmount;
+		int top = ImagePyramid.MAX_LEVEL;
+		while (top > 0 && cluster.size() >> 2 * top < MIN_LEVEL_PIXELS)
+			top--;
 
-		// Shift Right
-		while (currShift < rightEdge) {
-			double diff = getShiftDiff(cluster, currShift);
-			//double diff = getMonteCarloShiftDiff(cluster, currShift);
+		int levelWidth = pyramid0.getWidth(top);
+		int bestShift = findLevelShift(cluster.downscale(top), top, 
+				-levelWidth, levelWidth - 1);
+		for (int level = top - 1; level >= 0; level--) {
+			levelWidth = pyramid0.getWidth(level);
+			bestShift = findLevelShift(
+					level == 0 ? cluster : cluster.downscale(level), level,
+					Math.max(2 * bestShift - REFINE_RADIUS, -levelWidth),
+					Math.min(2 * bestShift + REFINE_RADIUS, levelWidth - 1));
+		}
+		return bestShift;
+	}
 
+	/**
+	 * Returns the lowest cost shift in [minShift, maxShift] of a cluster 
+	 * given in the coordinates of a pyramid level
+	 */
+	private int findLevelShift (Cluster cluster, int level, int minShift,
+			int maxShift) {
+		int bestShift = minShift;
+		double bestDiff = Double.MAX_VALUE;
+		for (int shift = minShift; shift <= maxShift; shift++) {
+			double diff = getShiftDiff(cluster, shift, pyramid0.getLevel(level),
+					pyramid1.getLevel(level), pyramid0.getWidth(level),
+					pyramid0.getHeight(level));
 			if (diff < bestDiff) {
 				bestDiff = diff;
-				bestShift = currShift;
+				bestShift = shift;
 			}
-
-			currShift += shiftAmount;
 		}
-
 		return bestShift;
 	}
 	
-	private double getShiftDiff (Cluster cluster, int shift) {
+	public double getShiftDiff (Cluster cluster, int shift) {
+		return getShiftDiff(cluster, shift, packed0, calibrated1, width, height);
+	}
+
+	/**
+	 * The shift cost of a cluster against a pair of images of the given
+	 * size, e.g. a pyramid level. Cluster pixels outside the images (in an
+	 * odd row or column a pyramid level drops) are left out.
+	 */
+	private double getShiftDiff (Cluster cluster, int shift, int[] image0,
+			int[] image1, int width, int height) {
 		diffCallCount++;
-		ArrayList<Integer> xLocs = cluster.x;
-		ArrayList<Integer> yLocs = cluster.y;
 		
-		int currDiff = 0;
+		long currDiff = 0;
 		int pixelsDiffed = 0;
 
-		for (int i = 0; i < xLocs.size(); i++) {
-			int xLoc = xLocs.get(i);
-			int yLoc = yLocs.get(i);
-
-			int[] rgb0 = raster0.getPixel(xLoc, yLoc, new int[4]);
-			int[] rgb1 = cameraCalibrator.getMatchingPixel(xLoc + shift,
-					yLoc);
-
-			if (rgb1 == null)
+		for (int run = 0; run < cluster.getRunCount(); run++) {
+			int yLoc = cluster.getRunY(run);
+			int start = Math.max(cluster.getRunStartX(run), -shift);
+			int end = Math.min(cluster.getRunEndX(run), 
+					Math.min(width, width - shift));
+			if (start >= end || yLoc >= height)
 				continue;
 
-			pixelsDiffed++;
-
-			int pixDiff = 	Math.abs(rgb0[0] - rgb1[0]) +
-			Math.abs(rgb0[1] - rgb1[1]) +
-			Math.abs(rgb0[2] - rgb1[2]);
-
-			currDiff += pixDiff;
+			int rowBase = yLoc * width;
+			currDiff += kernel.sumDiff(image0, rowBase + start,
+					image1, rowBase + start + shift, end - start);
+			pixelsDiffed += kernel.countValid(image0, rowBase + start,
+					image1, rowBase + start + shift, end - start);
 		}
 
-		return currDiff / (double) (pixelsDiffed * pixelsDiffed);
+		return currDiff / ((double) pixelsDiffed * pixelsDiffed);
 	}
 
 	/**
@@ -168,39 +255,56 @@ public class ClusterMatcher implements RangeFinder {
 	 * pixel difference.
 	 */
 	private void findOptimalShift (Cluster cluster) {
-		double bestDiff = Double.MAX_VALUE;
-		int bestOffset = 0;
+		int bestOffset = findExhaustiveShifts(
+				Collections.singletonList(cluster))[0];
+		double bestDiff = getShiftDiff(cluster, bestOffset);
 
-		for (int shift = -width; shift < width; shift++) {
-			double totalDiff = getShiftDiff(cluster, shift);
-
-			if (totalDiff < bestDiff) {
-				bestDiff = totalDiff;
-				bestOffset = shift;
-			}
-		}
 		System.out.printf("Patch Size %d. Best Offset %d. Best Diff %f.\n",
 				cluster.size(), bestOffset, bestDiff);
 	}
 	
-	public static void matchClusters (ArrayList<Cluster> fg0Clusters,
-			ArrayList<Cluster> fg1Clusters) {
-		
+	/**
+	 * Matches the foreground clusters of the two cameras into touch
+	 * events. Largest first, each cluster of the first camera takes the
+	 * unmatched cluster of the second whose rows overlap its own and 
+	 * whose centroid is vertically nearest. Clusters left without a match
+	 * are not reported.
+	 */
+	public static ArrayList<TouchEvent> matchClusters (List<Cluster> fg0Clusters,
+			List<Cluster> fg1Clusters) {
+		ArrayList<TouchEvent> touches = new ArrayList<TouchEvent>();
 		if (fg0Clusters.isEmpty() || fg1Clusters.isEmpty())
-			return;
-		
-		double fg0Avg = 0.0, fg1Avg = 0.0;
-		
-		for (Cluster c : fg0Clusters)
-			fg0Avg += c.getAvgX();
-		
-		for (Cluster c : fg1Clusters)
-			fg1Avg += c.getAvgX();
+			return touches;
 		
-		fg0Avg /= fg0Clusters.size();
-		fg1Avg /= fg1Clusters.size();
+		ArrayList<Cluster> bySize = new ArrayList<Cluster>(fg0Clusters);
+		Collections.sort(bySize, new Comparator<Cluster>() {
+			public int compare (Cluster a, Cluster b) {
+				return b.size() - a.size();
+			}
+		});
 		
-		System.out.println(fg0Avg - fg1Avg);
-		//System.out.println("Cluster0Avg: " + fg0Avg + " Cluster1Avg: " + fg1Avg);
+		boolean[] matched = new boolean[fg1Clusters.size()];
+		for (Cluster c0 : bySize) {
+			int best = -1;
+			double bestDistance = Double.MAX_VALUE;
+			for (int i = 0; i < matched.length; i++) {
+				Cluster c1 = fg1Clusters.get(i);
+				if (matched[i] || c1.maxY < c0.minY || c1.minY > c0.maxY)
+					continue;
+				double distance = Math.abs(c1.getAvgY() - c0.getAvgY());
+				if (distance < bestDistance) {
+					bestDistance = distance;
+					best = i;
+				}
+			}
+			if (best < 0)
+				continue;
+			
+			matched[best] = true;
+			touches.add(new TouchEvent(c0.getAvgX(), c0.getAvgY(), 
+					c0.getAvgX() - fg1Clusters.get(best).getAvgX(), 
+					c0.size(), c0.getWidth(), c0.getHeight()));
+		}
+		return touches;
 	}
 }
@@ -0,0 +1,380 @@
+package arTouch.rangeFinders;
+
+import java.util.List;
+
+import arTouch.DiffKernel;
+import arTouch.PackedPixels;
+import arTouch.Clusterer.Cluster;
+
+/**
+ * Finds the lowest cost horizontal shift of clusters between camera1's
+ * image and camera2's calibrated image, with the cost of
+ * ClusterMatcher.getShiftDiff: the summed pixel difference over the
+ * valid shifted pixels divided by the square of their count.
+ *
+ * Every shift is considered, but few are evaluated pixel by pixel. Per
+ * row prefix sums of each channel (an integral image per row) give, for
+ * any row segment at any shift, the channel sums of both images. The
+ * difference of the sums never exceeds the summed pixel differences, so
+ * adding it up over a cluster's segments bounds the cost of a shift from
+ * below. Shifts are bounded first with whole runs, then with shorter and
+ * tighter segments, and any shift whose bound is already worse than the
+ * best exact cost found is dropped (successive elimination). The valid
+ * pixel counts are taken from prefix sums as well, so they are exact.
+ */
+public class ShiftCostEngine {
+	/**
+	 * Segment lengths of the bounds that follow the whole run bound,
+	 * loosest first
+	 */
+	private static final int[] SEGMENT_LENGTHS = { 32, 8 };
+
+	private int width, height;
+	private int[] packed0, calibrated1;
+
+	/**
+	 * Per row prefix sums, width + 1 entries per row, of the valid pixels
+	 * of camera2's image and of each channel of both images. The channel
+	 * sums are interleaved, three ints per entry. Rows are only summed
+	 * once a cluster covers them; rowFrame records which frame each row
+	 * was last summed for.
+	 */
+	private int[] sum0, sum1, valid1;
+	private int[] rowFrame;
+	private int frame;
+
+	/**
+	 * Whether each row of camera2's image is valid over one interval. The
+	 * channel sums of camera1 can only be matched to a shifted interval,
+	 * other rows add nothing to the bounds.
+	 */
+	private boolean[] rowBounded;
+	private int[] validStart, validEnd;
+
+	/**
+	 * Camera1's channel sums of each run of the current cluster
+	 */
+	private int[] runSums = new int[0];
+
+	private int[] shifts = new int[0], counts = new int[0];
+	private long[] bounds = new long[0];
+	private long pixelsDiffed, segmentsBounded;
+	private DiffKernel kernel = DiffKernel.get();
+
+	/**
+	 * Sets the row-major packed images the costs are computed from. The
+	 * prefix sums are rebuilt as later searches need them.
+	 */
+	public void setImages (int[] packed0, int[] calibrated1, int width,
+			int height) {
+		this.packed0 = packed0;
+		this.calibrated1 = calibrated1;
+		frame++;
+
+		if (width != this.width || height != this.height) {
+			this.width = width;
+			this.height = height;
+			int size = (width + 1) * height;
+			sum0 = new int[3 * size];
+			sum1 = new int[3 * size];
+			valid1 = new int[size];
+			rowFrame = new int[height];
+			rowBounded = new boolean[height];
+			validStart = new int[height];
+			validEnd = new int[height];
+		}
+	}
+
+	/**
+	 * Returns the number of pixel differences computed since the last
+	 * call to resetCounters.
+	 */
+	public long getPixelsDiffed () {
+		return pixelsDiffed;
+	}
+
+	/**
+	 * Returns the number of run and segment bounds computed since the
+	 * last call to resetCounters. Each costs a few prefix sum lookups.
+	 */
+	public long getSegmentsBounded () {
+		return segmentsBounded;
+	}
+
+	public void resetCounters () {
+		pixelsDiffed = 0;
+		segmentsBounded = 0;
+	}
+
+	/**
+	 * Returns the lowest cost shift from minShift to maxShift (inclusive)
+	 * of each cluster.
+	 */
+	public int[] findBestShifts (List<Cluster> clusters, int minShift,
+			int maxShift) {
+		int[] best = new int[clusters.size()];
+		for (int i = 0; i < best.length; i++)
+			best[i] = findBestShift(clusters.get(i), minShift, maxShift);
+		return best;
+	}
+
+	/**
+	 * Returns the lowest cost shift from minShift to maxShift (inclusive)
+	 * of the cluster. Ties go to the smaller shift, and a cluster with no
+	 * valid pixels at any shift gets a shift of 0, as a scan over every
+	 * shift with getShiftDiff would.
+	 */
+	public int findBestShift (Cluster cluster, int minShift, int maxShift) {
+		prepareCluster(cluster);
+
+		// Shifts beyond these leave the cluster outside the image
+		minShift = Math.max(minShift, -cluster.maxX);
+		maxShift = Math.min(maxShift, width - 1 - cluster.minX);
+		if (shifts.length < maxShift - minShift + 1) {
+			shifts = new int[maxShift - minShift + 1];
+			counts = new int[shifts.length];
+			bounds = new long[shifts.length];
+		}
+
+		int candidates = 0, lowest = 0;
+		for (int shift = minShift; shift <= maxShift; shift++) {
+			if (boundRuns(cluster, shift, candidates)) {
+				if (isLower(candidates, lowest))
+					lowest = candidates;
+				candidates++;
+			}
+		}
+		if (candidates == 0)
+			return 0;
+
+		// The most promising shift sets the bar for the others
+		int bestShift = shifts[lowest];
+		double bestCost = getCost(cluster, bestShift, counts[lowest]);
+		candidates = eliminate(candidates, bestCost);
+
+		for (int level = 0; level < SEGMENT_LENGTHS.length; level++) {
+			lowest = 0;
+			for (int c = 0; c < candidates; c++) {
+				bounds[c] = boundSegments(cluster, shifts[c],
+						SEGMENT_LENGTHS[level]);
+				if (isLower(c, lowest))
+					lowest = c;
+			}
+
+			if (shifts[lowest] != bestShift) {
+				double cost = getCost(cluster, shifts[lowest], counts[lowest]);
+				if (cost < bestCost ||
+						(cost == bestCost && shifts[lowest] < bestShift)) {
+					bestCost = cost;
+					bestShift = shifts[lowest];
+				}
+			}
+			candidates = eliminate(candidates, bestCost);
+		}
+
+		// Whatever the bounds could not rule out is checked exactly
+		for (int c = 0; c < candidates; c++) {
+			if (shifts[c] == bestShift)
+				continue;
+			double cost = getCost(cluster, shifts[c], counts[c]);
+			if (cost < bestCost || (cost == bestCost && shifts[c] < bestShift)) {
+				bestCost = cost;
+				bestShift = shifts[c];
+			}
+		}
+
+		return bestShift;
+	}
+
+	/**
+	 * Whether candidate a's bound on the cost is below candidate b's
+	 */
+	private boolean isLower (int a, int b) {
+		return bounds[a] * (double) counts[b] * counts[b] <
+			bounds[b] * (double) counts[a] * counts[a];
+	}
+
+	/**
+	 * Drops the candidates whose bound is worse than cost, keeping the
+	 * order of the rest.
+	 */
+	private int eliminate (int candidates, double cost) {
+		int kept = 0;
+		for (int c = 0; c < candidates; c++) {
+			if (bounds[c] / ((double) counts[c] * counts[c]) > cost)
+				continue;
+			shifts[kept] = shifts[c];
+			counts[kept] = counts[c];
+			bounds[kept++] = bounds[c];
+		}
+		return kept;
+	}
+
+	/**
+	 * Sums the rows the cluster covers, if not done yet for this frame,
+	 * and camera1's channel sums of each of its runs.
+	 */
+	private void prepareCluster (Cluster cluster) {
+		if (runSums.length < 3 * cluster.getRunCount())
+			runSums = new int[3 * cluster.getRunCount()];
+
+		for (int run = 0; run < cluster.getRunCount(); run++) {
+			int y = cluster.getRunY(run);
+			if (rowFrame[y] != frame)
+				sumRow(y);
+
+			int prefix = 3 * y * (width + 1);
+			int i0 = prefix + 3 * cluster.getRunStartX(run);
+			int i1 = prefix + 3 * cluster.getRunEndX(run);
+			runSums[3 * run] = sum0[i1] - sum0[i0];
+			runSums[3 * run + 1] = sum0[i1 + 1] - sum0[i0 + 1];
+			runSums[3 * run + 2] = sum0[i1 + 2] - sum0[i0 + 2];
+		}
+	}
+
+	private void sumRow (int y) {
+		int prefix = y * (width + 1), pixel = y * width;
+		int r0 = 0, g0 = 0, b0 = 0, r1 = 0, g1 = 0, b1 = 0, valid = 0;
+		int start = -1, end = -1;
+		boolean interval = true;
+
+		for (int x = 0; x < width; x++) {
+			int argb0 = packed0[pixel + x], argb1 = calibrated1[pixel + x];
+			r0 += PackedPixels.red(argb0);
+			g0 += PackedPixels.green(argb0);
+			b0 += PackedPixels.blue(argb0);
+			if (PackedPixels.isValid(argb1)) {
+				r1 += PackedPixels.red(argb1);
+				g1 += PackedPixels.green(argb1);
+				b1 += PackedPixels.blue(argb1);
+				valid++;
+
+				if (start < 0)
+					start = x;
+				else if (end >= 0)
+					interval = false;
+			} else if (start >= 0 && end < 0) {
+				end = x;
+			}
+
+			int i = 3 * (prefix + x + 1);
+			sum0[i] = r0;
+			sum0[i + 1] = g0;
+			sum0[i + 2] = b0;
+			sum1[i] = r1;
+			sum1[i + 1] = g1;
+			sum1[i + 2] = b1;
+			valid1[prefix + x + 1] = valid;
+		}
+
+		rowBounded[y] = interval && start >= 0;
+		validStart[y] = start;
+		validEnd[y] = end < 0 ? width : end;
+		rowFrame[y] = frame;
+	}
+
+	/**
+	 * Counts the cluster's pixels whose shifted counterpart is valid and
+	 * bounds the cluster's summed difference from its whole runs, storing
+	 * both as candidate c. Returns false, storing nothing, if no pixel is
+	 * valid at this shift.
+	 */
+	private boolean boundRuns (Cluster cluster, int shift, int c) {
+		int count = 0;
+		long bound = 0;
+
+		for (int run = 0; run < cluster.getRunCount(); run++) {
+			int y = cluster.getRunY(run);
+			int runStart = cluster.getRunStartX(run);
+			int runEnd = cluster.getRunEndX(run);
+			int start = Math.max(runStart, -shift);
+			int end = Math.min(runEnd, width - shift);
+			if (start >= end)
+				continue;
+
+			int prefix = y * (width + 1);
+			count += valid1[prefix + end + shift] - valid1[prefix + start + shift];
+
+			if (!rowBounded[y])
+				continue;
+			start = Math.max(start, validStart[y] - shift);
+			end = Math.min(end, validEnd[y] - shift);
+			if (start >= end)
+				continue;
+
+			int j0 = 3 * (prefix + start + shift), j1 = 3 * (prefix + end + shift);
+			if (start == runStart && end == runEnd) {
+				int s = 3 * run;
+				bound += Math.abs(runSums[s] - sum1[j1] + sum1[j0]) +
+					Math.abs(runSums[s + 1] - sum1[j1 + 1] + sum1[j0 + 1]) +
+					Math.abs(runSums[s + 2] - sum1[j1 + 2] + sum1[j0 + 2]);
+			} else {
+				bound += boundSegment(3 * (prefix + start), 3 * (prefix + end),
+						j0, j1);
+			}
+		}
+
+		segmentsBounded += cluster.getRunCount();
+		if (count == 0)
+			return false;
+		shifts[c] = shift;
+		counts[c] = count;
+		bounds[c] = bound;
+		return true;
+	}
+
+	/**
+	 * A lower bound of the summed pixel differences of the cluster at the
+	 * shift, from the channel sums of segments of at most the given length
+	 */
+	private long boundSegments (Cluster cluster, int shift, int segment) {
+		long bound = 0;
+		for (int run = 0; run < cluster.getRunCount(); run++) {
+			int y = cluster.getRunY(run);
+			if (!rowBounded[y])
+				continue;
+
+			// Only pixels whose counterpart is valid count
+			int start = Math.max(cluster.getRunStartX(run), validStart[y] - shift);
+			int end = Math.min(cluster.getRunEndX(run), validEnd[y] - shift);
+			int prefix = 3 * y * (width + 1);
+
+			for (int x0 = start, x1; x0 < end; x0 = x1) {
+				x1 = end - x0 > segment ? x0 + segment : end;
+				int i0 = prefix + 3 * x0, i1 = prefix + 3 * x1;
+				bound += boundSegment(i0, i1, i0 + 3 * shift, i1 + 3 * shift);
+				segmentsBounded++;
+			}
+		}
+		return bound;
+	}
+
+	/**
+	 * The channel sum difference between camera1's segment from sum index
+	 * i0 to i1 and camera2's from j0 to j1
+	 */
+	private int boundSegment (int i0, int i1, int j0, int j1) {
+		return Math.abs(sum0[i1] - sum0[i0] - sum1[j1] + sum1[j0]) +
+			Math.abs(sum0[i1 + 1] - sum0[i0 + 1] - sum1[j1 + 1] + sum1[j0 + 1]) +
+			Math.abs(sum0[i1 + 2] - sum0[i0 + 2] - sum1[j1 + 2] + sum1[j0 + 2]);
+	}
+
+	/**
+	 * The exact cost of the cluster at the shift, given its valid count
+	 */
+	private double getCost (Cluster cluster, int shift, int count) {
+		long diff = 0;
+		for (int run = 0; run < cluster.getRunCount(); run++) {
+			int start = Math.max(cluster.getRunStartX(run), -shift);
+			int end = Math.min(cluster.getRunEndX(run), width - shift);
+			if (start >= end)
+				continue;
+
+			int row = cluster.getRunY(run) * width;
+			diff += kernel.sumDiff(packed0, row + start, calibrated1,
+					row + start + shift, end - start);
+			pixelsDiffed += end - start;
+		}
+		return diff / ((double) count * count);
+	}
+}
@@ -0,0 +1,50 @@
+package arTouch.touch;
+
+/**
+ * An object seen by both cameras in one frame: a foreground cluster of
+ * the first camera matched with one of the second. Positions are in the
+ * first camera's image, in pixels.
+ */
+public class TouchEvent {
+	/**
+	 * The centroid of the object
+	 */
+	public final double x, y;
+
+	/**
+	 * The centroid's x in the first camera's image less its x in the
+	 * second's, in pixels. It grows in size as the object nears the
+	 * cameras.
+	 */
+	public final double disparity;
+
+	/**
+	 * The number of pixels of the object, and its bounding box size
+	 */
+	public final int size, width, height;
+
+	public TouchEvent (double x, double y, double disparity, int size,
+			int width, int height) {
+		this.x = x;
+		this.y = y;
+		this.disparity = disparity;
+		this.size = size;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Returns the distance to the object, given the product of the
+	 * cameras' focal length in pixels and their baseline, in the units
+	 * of the baseline. Infinite for a disparity of 0.
+	 */
+	public double getRange (double focalBaseline) {
+		return disparity != 0 ? focalBaseline / Math.abs(disparity) : 
+			Double.POSITIVE_INFINITY;
+	}
+
+	public String toString () {
+		return String.format("(%.1f,%.1f) disparity %.1f size %d", x, y, 
+				disparity, size);
+	}
+}
@@ -0,0 +1,33 @@
+package arTouch.touch;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The touch events of one processed image pair. Frames are immutable,
+ * so one frame can be handed to any number of listeners.
+ */
+public class TouchFrame {
+	/**
+	 * Counts processed pairs, from 0
+	 */
+	public final long sequence;
+
+	/**
+	 * The capture time of the first camera's image, in
+	 * System.currentTimeMillis milliseconds
+	 */
+	public final long timestamp;
+
+	public final List<TouchEvent> touches;
+
+	public TouchFrame (long sequence, long timestamp, List<TouchEvent> touches) {
+		this.sequence = sequence;
+		this.timestamp = timestamp;
+		this.touches = Collections.unmodifiableList(touches);
+	}
+
+	public String toString () {
+		return "frame " + sequence + " at " + timestamp + ": " + touches;
+	}
+}
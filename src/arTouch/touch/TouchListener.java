@@ -0,0 +1,9 @@
+package arTouch.touch;
+
+/**
+ * Receives the touch events of each frame, on the delivery thread of
+ * its subscription (see TouchPublisher)
+ */
+public interface TouchListener {
+	public void touchFrame (TouchFrame frame);
+}
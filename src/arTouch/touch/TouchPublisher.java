@@ -0,0 +1,209 @@
+package arTouch.touch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import arTouch.pipeline.RingBuffer;
+import arTouch.pipeline.RingBuffer.DropPolicy;
+
+/**
+ * Hands the touch frames of the processing thread to any number of
+ * listeners. Each listener has a subscription of its own: a lock-free
+ * ring buffer and a delivery thread calling the listener. A slow
+ * listener only ever holds up its own subscription, and only holds up
+ * processing if it asked to (Backpressure.BLOCK).
+ */
+public class TouchPublisher {
+	/**
+	 * What a subscription does with frames published while its buffer
+	 * is full
+	 */
+	public enum Backpressure {
+		/**
+		 * The new frame is dropped; the listener sees every frame it does
+		 * get in order, with gaps
+		 */
+		DROP,
+		/**
+		 * Only the latest frame is kept, replacing any not yet delivered.
+		 * The buffer capacity is ignored.
+		 */
+		COALESCE_LATEST,
+		/**
+		 * Publishing waits until the listener has made room, stalling
+		 * processing. For consumers that must see every frame.
+		 */
+		BLOCK
+	}
+
+	public static final int DEFAULT_CAPACITY = 4;
+
+	/**
+	 * How long an idle delivery thread, or a publisher blocked on a full
+	 * buffer, waits between checks
+	 */
+	private static final long POLL_NANOS = 10000000;
+	private static final long PARK_NANOS = 100000;
+
+	/**
+	 * How long shutdown waits for each listener to take its last frames
+	 */
+	private static final long SHUTDOWN_MILLIS = 1000;
+
+	private final List<Subscription> subscriptions =
+		new CopyOnWriteArrayList<Subscription>();
+
+	/**
+	 * A listener's buffer and delivery thread
+	 */
+	public class Subscription {
+		private final TouchListener listener;
+		private final Backpressure backpressure;
+		private final RingBuffer<TouchFrame> frames;
+		private final Thread deliveryThread;
+		private volatile boolean cancelled = false;
+		private volatile long delivered = 0;
+
+		Subscription (TouchListener listener, Backpressure backpressure,
+				int capacity) {
+			this.listener = listener;
+			this.backpressure = backpressure;
+
+			switch (backpressure) {
+			case DROP:
+				frames = new RingBuffer<TouchFrame>(capacity,
+						DropPolicy.DROP_NEWEST);
+				break;
+			case COALESCE_LATEST:
+				frames = new RingBuffer<TouchFrame>(1, DropPolicy.DROP_OLDEST);
+				break;
+			default:
+				frames = new RingBuffer<TouchFrame>(capacity, DropPolicy.BLOCK);
+			}
+
+			deliveryThread = new Thread("Touch Delivery Thread") {
+				public void run () {
+					deliver();
+				}
+			};
+			deliveryThread.setDaemon(true);
+		}
+
+		/**
+		 * Called on the publishing thread only
+		 */
+		void offer (TouchFrame frame) {
+			if (backpressure != Backpressure.BLOCK) {
+				frames.put(frame);
+				return;
+			}
+			// Not RingBuffer's own blocking put, which would wait forever
+			// once the subscription is cancelled
+			while (!frames.offer(frame)) {
+				if (cancelled)
+					return;
+				LockSupport.parkNanos(PARK_NANOS);
+			}
+		}
+
+		private void deliver () {
+			while (!cancelled || !frames.isEmpty()) {
+				TouchFrame frame = frames.take(POLL_NANOS);
+				if (frame == null)
+					continue;
+				try {
+					listener.touchFrame(frame);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					System.out.println("Touch listener failed");
+				}
+				delivered++;
+			}
+		}
+
+		/**
+		 * Stops taking frames. Those already buffered are still delivered,
+		 * after which the delivery thread finishes.
+		 */
+		public void cancel () {
+			cancelled = true;
+			subscriptions.remove(this);
+		}
+
+		public TouchListener getListener () {
+			return listener;
+		}
+
+		public Backpressure getBackpressure () {
+			return backpressure;
+		}
+
+		public long getDelivered () {
+			return delivered;
+		}
+
+		/**
+		 * Returns the number of frames dropped or replaced before delivery
+		 */
+		public long getDropped () {
+			return frames.getDropped();
+		}
+	}
+
+	/**
+	 * Subscribes a listener with room for DEFAULT_CAPACITY frames
+	 */
+	public Subscription addListener (TouchListener listener,
+			Backpressure backpressure) {
+		return addListener(listener, backpressure, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Subscribes a listener to every frame published from now on
+	 *
+	 * @param capacity how many frames may wait for the listener
+	 */
+	public Subscription addListener (TouchListener listener,
+			Backpressure backpressure, int capacity) {
+		Subscription s = new Subscription(listener, backpressure, capacity);
+		subscriptions.add(s);
+		s.deliveryThread.start();
+		return s;
+	}
+
+	/**
+	 * Returns whether anyone is listening, so that frames need not be
+	 * built when no one is
+	 */
+	public boolean hasListeners () {
+		return !subscriptions.isEmpty();
+	}
+
+	/**
+	 * Hands a frame to every subscription. Must always be called from
+	 * the same thread, each subscription's buffer having a single
+	 * producer.
+	 */
+	public void publish (TouchFrame frame) {
+		for (Subscription s : subscriptions)
+			s.offer(frame);
+	}
+
+	/**
+	 * Cancels every subscription and waits a while for each to deliver
+	 * its buffered frames
+	 */
+	public void shutdown () {
+		List<Subscription> cancelled = new ArrayList<Subscription>(subscriptions);
+		for (Subscription s : cancelled)
+			s.cancel();
+		try {
+			for (Subscription s : cancelled)
+				s.deliveryThread.join(SHUTDOWN_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package arTouch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CalibrationCacheTest {
+	private static final String RIG = "rig";
+	private static final int WIDTH = 8, HEIGHT = 6;
+
+	private File directory;
+	private CalibrationCache cache;
+
+	@Before
+	public void setUp () throws IOException {
+		directory = File.createTempFile("calibration", "");
+		directory.delete();
+		cache = new CalibrationCache(directory);
+	}
+
+	@After
+	public void tearDown () {
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File file : files)
+				file.delete();
+		directory.delete();
+	}
+
+	private static CalibrationSnapshot snapshot () {
+		PixelPlane r = new PixelPlane(WIDTH, HEIGHT);
+		PixelPlane g = new PixelPlane(WIDTH, HEIGHT);
+		PixelPlane b = new PixelPlane(WIDTH, HEIGHT);
+		for (int i = 0; i < WIDTH * HEIGHT; i++) {
+			r.set(i, i);
+			g.set(i, -i);
+			b.set(i, 2 * i);
+		}
+		return new CalibrationSnapshot(1, -10, 15, 3, -4, 5, r, g, b);
+	}
+
+	private void write (byte[] contents) throws IOException {
+		directory.mkdirs();
+		RandomAccessFile out = new RandomAccessFile(
+				cache.getFile(RIG, WIDTH, HEIGHT), "rw");
+		try {
+			out.setLength(0);
+			out.write(contents);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * The magic number and format version, followed by the given key
+	 * length and a few bytes
+	 */
+	private static byte[] header (int keyLength) {
+		return ByteBuffer.allocate(20).putInt(0x41525443).putInt(1)
+			.putInt(keyLength).putInt(0).putInt(0).array();
+	}
+
+	@Test
+	public void savedCalibrationLoads () throws IOException {
+		cache.save(RIG, WIDTH, HEIGHT, snapshot());
+		CalibrationSnapshot loaded = cache.load(RIG, WIDTH, HEIGHT);
+
+		assertNotNull(loaded);
+		assertEquals(-10, loaded.offsetX);
+		assertEquals(15, loaded.offsetY);
+		assertEquals(-4, loaded.globalOffsetG);
+		assertEquals(-(WIDTH * HEIGHT - 1),
+				loaded.individualOffsetG.get(WIDTH * HEIGHT - 1));
+	}
+
+	@Test
+	public void truncatedFileLoadsNull () throws IOException {
+		cache.save(RIG, WIDTH, HEIGHT, snapshot());
+		File file = cache.getFile(RIG, WIDTH, HEIGHT);
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.setLength(file.length() / 2);
+		} finally {
+			out.close();
+		}
+
+		assertNull(cache.load(RIG, WIDTH, HEIGHT));
+	}
+
+	@Test
+	public void negativeKeyLengthLoadsNull () throws IOException {
+		write(header(-1));
+		assertNull(cache.load(RIG, WIDTH, HEIGHT));
+	}
+
+	@Test
+	public void hugeKeyLengthLoadsNull () throws IOException {
+		write(header(Integer.MAX_VALUE));
+		assertNull(cache.load(RIG, WIDTH, HEIGHT));
+	}
+
+	@Test
+	public void garbageLoadsNull () throws IOException {
+		write("not a calibration".getBytes("UTF-8"));
+		assertNull(cache.load(RIG, WIDTH, HEIGHT));
+	}
+}